@@ -58,7 +58,7 @@ public class SampleActivity extends AppCompatActivity {
 
   @Override protected void onDestroy() {
     super.onDestroy();
-    TelescopeLayout.cleanUp(this);
+    TelescopeLayout.cleanUpAsync(this);
   }
 
   @Override public boolean onCreateOptionsMenu(Menu menu) {
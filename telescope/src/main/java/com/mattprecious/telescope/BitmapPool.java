@@ -0,0 +1,76 @@
+package com.mattprecious.telescope;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of mutable bitmaps keyed by their size and config. Bitmaps are handed out by
+ * {@link #get} and given back with {@link #put}. The pool holds at most {@code maxBytes} worth of
+ * bitmaps; when it is full the least recently returned bitmaps are dropped.
+ *
+ * <p>This class is thread-safe.
+ */
+final class BitmapPool {
+  // Kept in the order they were returned. Pools are small so a list scan is fine.
+  private final List<Bitmap> bitmaps = new ArrayList<>();
+  private long maxBytes;
+  private long currentBytes;
+
+  BitmapPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return a pooled bitmap of the given size and config, or a new one if none is available. The
+   * contents of a pooled bitmap are undefined.
+   */
+  Bitmap get(int width, int height, Bitmap.Config config) {
+    synchronized (this) {
+      for (int i = bitmaps.size() - 1; i >= 0; i--) {
+        Bitmap bitmap = bitmaps.get(i);
+        if (bitmap.getWidth() == width
+            && bitmap.getHeight() == height
+            && bitmap.getConfig() == config) {
+          bitmaps.remove(i);
+          currentBytes -= bitmap.getByteCount();
+          return bitmap;
+        }
+      }
+    }
+
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  /** Offer a bitmap that is no longer in use back to the pool. */
+  synchronized void put(Bitmap bitmap) {
+    if (bitmap == null
+        || bitmap.isRecycled()
+        || !bitmap.isMutable()
+        || bitmap.getByteCount() > maxBytes
+        || bitmaps.contains(bitmap)) {
+      return;
+    }
+
+    bitmaps.add(bitmap);
+    currentBytes += bitmap.getByteCount();
+    trimToSize(maxBytes);
+  }
+
+  synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    trimToSize(maxBytes);
+  }
+
+  synchronized void clear() {
+    trimToSize(0);
+  }
+
+  private void trimToSize(long size) {
+    while (currentBytes > size) {
+      // Drop the reference rather than recycling; the GC takes care of the rest.
+      Bitmap bitmap = bitmaps.remove(0);
+      currentBytes -= bitmap.getByteCount();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.mattprecious.telescope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream that collects what is written in a direct buffer from a {@link BufferPool},
+ * swapping in a larger one from the pool whenever it fills up. Writing more than the maximum
+ * capacity, or more than can be allocated, throws an {@link IOException} and the stream should
+ * then be {@linkplain #discard() discarded}.
+ */
+final class BufferOutputStream extends OutputStream {
+  private final BufferPool pool;
+  private final int maxCapacity;
+  private ByteBuffer buffer;
+
+  BufferOutputStream(BufferPool pool, int initialCapacity) {
+    this(pool, initialCapacity, Integer.MAX_VALUE);
+  }
+
+  BufferOutputStream(BufferPool pool, int initialCapacity, int maxCapacity) {
+    if (initialCapacity > maxCapacity) {
+      throw new IllegalArgumentException(
+          "initialCapacity > maxCapacity: " + initialCapacity + " > " + maxCapacity);
+    }
+    this.pool = pool;
+    this.maxCapacity = maxCapacity;
+    this.buffer = pool.get(initialCapacity);
+  }
+
+  @Override public void write(int b) throws IOException {
+    ensureRemaining(1);
+    buffer.put((byte) b);
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    ensureRemaining(len);
+    buffer.put(b, off, len);
+  }
+
+  /** The bytes written so far, from position 0 to the limit. The stream must not be used again. */
+  ByteBuffer toBuffer() {
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Give the buffer back to the pool without using it. */
+  void discard() {
+    pool.put(buffer);
+  }
+
+  private void ensureRemaining(int count) throws IOException {
+    if (buffer.remaining() >= count) {
+      return;
+    }
+
+    long required = (long) buffer.position() + count;
+    if (required > maxCapacity) {
+      throw new IOException("Encoded screenshot is larger than " + maxCapacity + " bytes.");
+    }
+    long doubled = 2L * buffer.capacity();
+    ByteBuffer larger;
+    try {
+      larger = pool.get((int) Math.min(maxCapacity, Math.max(required, doubled)));
+    } catch (OutOfMemoryError e) {
+      throw new IOException("Unable to allocate a " + required + " byte buffer.", e);
+    }
+    buffer.flip();
+    larger.put(buffer);
+    pool.put(buffer);
+    buffer = larger;
+  }
+}
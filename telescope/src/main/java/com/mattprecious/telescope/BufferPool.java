@@ -0,0 +1,61 @@
+package com.mattprecious.telescope;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of direct byte buffers. Buffers are handed out by {@link #get} and given back with
+ * {@link #put}. The pool holds at most {@code maxBytes} worth of buffers; when it is full the
+ * least recently returned buffers are dropped.
+ *
+ * <p>This class is thread-safe.
+ */
+final class BufferPool {
+  // Kept in the order they were returned. Pools are small so a list scan is fine.
+  private final List<ByteBuffer> buffers = new ArrayList<>();
+  private final long maxBytes;
+  private long currentBytes;
+
+  BufferPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return the smallest pooled buffer with room for at least {@code capacity} bytes, or a new one
+   * if none is available. The buffer is cleared but its contents are undefined.
+   */
+  ByteBuffer get(int capacity) {
+    synchronized (this) {
+      int best = -1;
+      for (int i = buffers.size() - 1; i >= 0; i--) {
+        int available = buffers.get(i).capacity();
+        if (available >= capacity && (best == -1 || available < buffers.get(best).capacity())) {
+          best = i;
+        }
+      }
+
+      if (best != -1) {
+        ByteBuffer buffer = buffers.remove(best);
+        currentBytes -= buffer.capacity();
+        buffer.clear();
+        return buffer;
+      }
+    }
+
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  /** Offer a buffer that is no longer in use back to the pool. */
+  synchronized void put(ByteBuffer buffer) {
+    if (!buffer.isDirect() || buffer.capacity() > maxBytes || buffers.contains(buffer)) {
+      return;
+    }
+
+    buffers.add(buffer);
+    currentBytes += buffer.capacity();
+    while (currentBytes > maxBytes) {
+      currentBytes -= buffers.remove(0).capacity();
+    }
+  }
+}
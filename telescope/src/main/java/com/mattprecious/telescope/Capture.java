@@ -0,0 +1,66 @@
+package com.mattprecious.telescope;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.File;
+
+/**
+ * A screenshot or recording saved by Telescope, as returned by
+ * {@link TelescopeLayout#getRecentCaptures(android.content.Context, int)}.
+ */
+public final class Capture {
+  private final File file;
+  private final long size;
+  private final int width;
+  private final int height;
+  private final long timestamp;
+  private final ScreenshotMode mode;
+  private final String hash;
+
+  Capture(File file, long size, int width, int height, long timestamp, ScreenshotMode mode,
+      String hash) {
+    this.file = file;
+    this.size = size;
+    this.width = width;
+    this.height = height;
+    this.timestamp = timestamp;
+    this.mode = mode;
+    this.hash = hash;
+  }
+
+  @NonNull public File getFile() {
+    return file;
+  }
+
+  /** The size of the file in bytes, or -1 if it is not known. */
+  public long getSize() {
+    return size;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** The time of the capture, in milliseconds since the epoch. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** The mode the capture was actually taken with, after any fallback. */
+  @NonNull public ScreenshotMode getMode() {
+    return mode;
+  }
+
+  /**
+   * The hash of the screenshot's pixels, or null if it was not computed. Only screenshots saved
+   * with {@link TelescopeLayout#setDeduplicateScreenshots(boolean) deduplication} enabled are
+   * hashed.
+   */
+  @Nullable public String getHash() {
+    return hash;
+  }
+}
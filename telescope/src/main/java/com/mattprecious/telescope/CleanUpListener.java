@@ -0,0 +1,10 @@
+package com.mattprecious.telescope;
+
+/**
+ * Interface definition for a callback to be invoked when
+ * {@link TelescopeLayout#cleanUpAsync(android.content.Context, CleanUpListener)} has finished.
+ */
+public interface CleanUpListener {
+  /** Called on the main thread once the screenshot folder has been cleaned up. */
+  void onCleanUpComplete();
+}
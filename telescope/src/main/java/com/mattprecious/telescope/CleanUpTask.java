@@ -0,0 +1,102 @@
+package com.mattprecious.telescope;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes the screenshot folder on a background handler, a batch of files per message so that
+ * anything else on the handler is not held up. Screenshots that another app may be reading are
+ * kept.
+ */
+final class CleanUpTask implements Runnable {
+  private static final int DELETES_PER_BATCH = 64;
+
+  private final Context context;
+  private final Handler handler;
+  private final CleanUpListener listener;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private List<File> files;
+  private List<File> folders;
+  private int next;
+  private boolean keptScreenshot;
+
+  CleanUpTask(Context context, Handler handler, CleanUpListener listener) {
+    this.context = context;
+    this.handler = handler;
+    this.listener = listener;
+  }
+
+  @Override public void run() {
+    if (files == null) {
+      // Finding the folder touches the disk too, so it happens here rather than on the caller.
+      list(TelescopeLayout.getScreenshotFolder(context));
+    }
+
+    int end = Math.min(files.size(), next + DELETES_PER_BATCH);
+    for (; next < end; next++) {
+      File file = files.get(next);
+      if (TileStore.TILE_FOLDER.equals(file.getParentFile().getName())) {
+        // A kept screenshot in delta storage may still need its tiles to be built.
+        if (!keptScreenshot) {
+          file.delete();
+        }
+      } else if (ScreenshotStore.isInUse(file)) {
+        keptScreenshot = true;
+      } else {
+        file.delete();
+      }
+    }
+
+    if (next < files.size()) {
+      handler.post(this);
+      return;
+    }
+
+    // Deepest first. Folders still holding a kept screenshot fail to delete, which is fine.
+    for (int i = folders.size() - 1; i >= 0; i--) {
+      folders.get(i).delete();
+    }
+
+    if (listener != null) {
+      mainHandler.post(new Runnable() {
+        @Override public void run() {
+          listener.onCleanUpComplete();
+        }
+      });
+    }
+  }
+
+  private void list(File root) {
+    files = new ArrayList<>();
+    folders = new ArrayList<>();
+    if (!root.exists()) {
+      return;
+    }
+
+    // Breadth first, so every screenshot comes before the tiles in the hidden folder below them.
+    ArrayDeque<File> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      File folder = pending.removeFirst();
+      folders.add(folder);
+
+      File[] children = folder.listFiles();
+      if (children == null) {
+        continue;
+      }
+      for (File child : children) {
+        if (child.isDirectory()) {
+          pending.addLast(child);
+        } else {
+          files.add(child);
+        }
+      }
+    }
+  }
+}
@@ -414,6 +414,7 @@ class FileProvider extends ContentProvider {
       String[] selectionArgs, String sortOrder) {
     // ContentProvider has already checked granted permissions
     final File file = mStrategy.getFileForUri(uri);
+    final File served = servedFile(file);
 
     if (projection == null) {
       projection = COLUMNS;
@@ -425,10 +426,19 @@ class FileProvider extends ContentProvider {
     for (String col : projection) {
       if (OpenableColumns.DISPLAY_NAME.equals(col)) {
         cols[i] = OpenableColumns.DISPLAY_NAME;
-        values[i++] = file.getName();
+        values[i++] = served.getName();
       } else if (OpenableColumns.SIZE.equals(col)) {
         cols[i] = OpenableColumns.SIZE;
-        values[i++] = file.length();
+        long length = servedLength(file);
+        if (length < 0) {
+          try {
+            prepareFile(file);
+          } catch (FileNotFoundException e) {
+            // Report whatever is there.
+          }
+          length = served.length();
+        }
+        values[i++] = length;
       }
     }
 
@@ -451,7 +461,7 @@ class FileProvider extends ContentProvider {
    */
   @Override public String getType(Uri uri) {
     // ContentProvider has already checked granted permissions
-    final File file = mStrategy.getFileForUri(uri);
+    final File file = servedFile(mStrategy.getFileForUri(uri));
 
     final int lastDot = file.getName().lastIndexOf('.');
     if (lastDot >= 0) {
@@ -496,6 +506,10 @@ class FileProvider extends ContentProvider {
   @Override public int delete(Uri uri, String selection, String[] selectionArgs) {
     // ContentProvider has already checked granted permissions
     final File file = mStrategy.getFileForUri(uri);
+    final File served = servedFile(file);
+    if (!served.equals(file)) {
+      served.delete();
+    }
     return file.delete() ? 1 : 0;
   }
 
@@ -519,7 +533,36 @@ class FileProvider extends ContentProvider {
     // ContentProvider has already checked granted permissions
     final File file = mStrategy.getFileForUri(uri);
     final int fileMode = modeToMode(mode);
-    return ParcelFileDescriptor.open(file, fileMode);
+    prepareFile(file);
+    return open(servedFile(file), fileMode);
+  }
+
+  /** Open the file served for a content URI. Subclasses can track when it is closed. */
+  ParcelFileDescriptor open(File file, int mode) throws FileNotFoundException {
+    return ParcelFileDescriptor.open(file, mode);
+  }
+
+  /**
+   * Return the file actually served for the file of a content URI. Its name is the display name
+   * and decides the MIME type. Must not do any I/O. Returns {@code file} by default.
+   */
+  File servedFile(File file) {
+    return file;
+  }
+
+  /**
+   * Return the size of the file served for the file of a content URI if it is known without
+   * preparing it, otherwise -1. Returns -1 by default.
+   */
+  long servedLength(File file) {
+    return -1;
+  }
+
+  /**
+   * Called with the file for a content URI before its size is queried or it is opened, so that
+   * subclasses can create it on demand. Does nothing by default.
+   */
+  void prepareFile(File file) throws FileNotFoundException {
   }
 
   /**
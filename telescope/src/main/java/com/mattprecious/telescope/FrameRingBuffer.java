@@ -0,0 +1,83 @@
+package com.mattprecious.telescope;
+
+import java.util.ArrayDeque;
+
+/**
+ * A ring of encoded frames stored back to back in a single fixed-size array. Adding a frame evicts
+ * the oldest frames until it fits, and frames older than the maximum age are dropped, so memory use
+ * never exceeds the capacity given at construction.
+ *
+ * <p>This class is thread-safe.
+ */
+final class FrameRingBuffer {
+  private static final class Frame {
+    final long timestamp;
+    final int offset;
+    final int length;
+
+    Frame(long timestamp, int offset, int length) {
+      this.timestamp = timestamp;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final byte[] storage;
+  private final long maxAgeMs;
+  private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+  private int head;
+  private int used;
+
+  FrameRingBuffer(int capacity, long maxAgeMs) {
+    this.storage = new byte[capacity];
+    this.maxAgeMs = maxAgeMs;
+  }
+
+  /** Add the first {@code length} bytes of {@code data} as a frame recorded at a timestamp. */
+  synchronized void add(byte[] data, int length, long timestamp) {
+    if (length > storage.length) {
+      // Can never fit. Drop it rather than evicting everything.
+      return;
+    }
+
+    evictOlderThan(timestamp - maxAgeMs);
+    while (used + length > storage.length) {
+      used -= frames.removeFirst().length;
+    }
+
+    int first = Math.min(length, storage.length - head);
+    System.arraycopy(data, 0, storage, head, first);
+    System.arraycopy(data, first, storage, 0, length - first);
+
+    frames.addLast(new Frame(timestamp, head, length));
+    head = (head + length) % storage.length;
+    used += length;
+  }
+
+  /** Copy out the frames recorded within the maximum age of {@code now}. */
+  synchronized InstantReplay snapshot(long now) {
+    evictOlderThan(now - maxAgeMs);
+
+    long[] timestamps = new long[frames.size()];
+    byte[][] data = new byte[frames.size()][];
+    int i = 0;
+    for (Frame frame : frames) {
+      byte[] bytes = new byte[frame.length];
+      int first = Math.min(frame.length, storage.length - frame.offset);
+      System.arraycopy(storage, frame.offset, bytes, 0, first);
+      System.arraycopy(storage, 0, bytes, first, frame.length - first);
+
+      timestamps[i] = frame.timestamp;
+      data[i] = bytes;
+      i++;
+    }
+
+    return new InstantReplay(timestamps, data);
+  }
+
+  private void evictOlderThan(long timestamp) {
+    while (!frames.isEmpty() && frames.peekFirst().timestamp < timestamp) {
+      used -= frames.removeFirst().length;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.mattprecious.telescope;
+
+/**
+ * The frames recorded in the seconds leading up to a capture when instant replay is enabled with
+ * {@link TelescopeLayout#setInstantReplay(int, int)}. Frames are downscaled, JPEG encoded, and
+ * ordered from oldest to newest.
+ */
+public final class InstantReplay {
+  private final long[] timestamps;
+  private final byte[][] frames;
+
+  InstantReplay(long[] timestamps, byte[][] frames) {
+    this.timestamps = timestamps;
+    this.frames = frames;
+  }
+
+  public int getFrameCount() {
+    return frames.length;
+  }
+
+  /** The time the frame at {@code index} was recorded, in milliseconds since the epoch. */
+  public long getFrameTimestamp(int index) {
+    return timestamps[index];
+  }
+
+  /** The JPEG encoded frame at {@code index}. */
+  public byte[] getFrame(int index) {
+    return frames[index].clone();
+  }
+}
@@ -16,6 +16,10 @@ public abstract class Lens {
    * processing before saving. The default implementation immediately calls the {@code listener}
    * with the original screenshot.
    *
+   * <p>
+   * The screenshot is reused by later captures once the {@code listener} has been called, so do
+   * not hold on to it. The same applies to a different bitmap passed to the {@code listener}.
+   *
    * @param screenshot A reference to the screenshot that was captured. Can be null if screenshots
    * were disabled.
    * @param listener callback for when additional processing has been completed. This listener must
@@ -32,4 +36,42 @@ public abstract class Lens {
    * were disabled.
    */
   public abstract void onCapture(@Nullable File screenshot);
+
+  /**
+   * Called instead of {@link #onCapture(File)} when a capture is triggered while instant replay is
+   * enabled. The default implementation ignores the replay and calls {@link #onCapture(File)}.
+   *
+   * @param screenshot A reference to the screenshot that was captured. Can be null if screenshots
+   * were disabled.
+   * @param replay The frames recorded in the seconds before the capture was triggered.
+   */
+  public void onCapture(@Nullable File screenshot, @NonNull InstantReplay replay) {
+    onCapture(screenshot);
+  }
+
+  /**
+   * Called instead of {@link #onCapture(File)} with a screenshot kept in memory when
+   * {@link TelescopeLayout#setMemoryStorage(boolean) memory storage} is enabled. Only lenses that
+   * override this method, or {@link #onCapture(ScreenshotBuffer, InstantReplay)}, are called this
+   * way. The default implementation releases the screenshot.
+   *
+   * @param screenshot The encoded screenshot. Call {@link ScreenshotBuffer#release()} once done
+   * with it.
+   */
+  public void onCapture(@NonNull ScreenshotBuffer screenshot) {
+    screenshot.release();
+  }
+
+  /**
+   * Called instead of {@link #onCapture(ScreenshotBuffer)} when a capture is triggered while
+   * instant replay is enabled. The default implementation ignores the replay and calls
+   * {@link #onCapture(ScreenshotBuffer)}.
+   *
+   * @param screenshot The encoded screenshot. Call {@link ScreenshotBuffer#release()} once done
+   * with it.
+   * @param replay The frames recorded in the seconds before the capture was triggered.
+   */
+  public void onCapture(@NonNull ScreenshotBuffer screenshot, @NonNull InstantReplay replay) {
+    onCapture(screenshot);
+  }
 }
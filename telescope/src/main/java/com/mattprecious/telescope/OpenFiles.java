@@ -0,0 +1,75 @@
+package com.mattprecious.telescope;
+
+import android.os.SystemClock;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the screenshots that other apps may be reading through {@link TelescopeFileProvider}, so
+ * that background maintenance leaves them alone. Files are keyed by the file actually served.
+ *
+ * <p>A file counts as in use while it is open, and from when its content URI is handed out until it
+ * is first closed or {@link #GRANT_TIMEOUT_MS} passes. There is no way to know when a URI grant
+ * ends, so the timeout stands in for apps that never open it. Nothing survives the process.
+ *
+ * <p>This class is thread-safe.
+ */
+final class OpenFiles {
+  static final long GRANT_TIMEOUT_MS = 30 * 60 * 1000;
+
+  private static final Map<File, Integer> counts = new HashMap<>();
+  private static final Map<File, Long> grants = new HashMap<>();
+
+  /** Record that a content URI for {@code file} was handed out. */
+  static synchronized void grant(File file) {
+    grants.put(file, SystemClock.elapsedRealtime());
+  }
+
+  static synchronized void acquire(File file) {
+    Integer count = counts.get(file);
+    counts.put(file, count == null ? 1 : count + 1);
+  }
+
+  static synchronized void release(File file) {
+    // Whoever the URI was handed to has read it.
+    grants.remove(file);
+
+    Integer count = counts.get(file);
+    if (count == null) {
+      return;
+    }
+
+    if (count == 1) {
+      counts.remove(file);
+    } else {
+      counts.put(file, count - 1);
+    }
+  }
+
+  static synchronized boolean isOpen(File file) {
+    return counts.containsKey(file);
+  }
+
+  /** Whether {@code file} is open or its content URI is still outstanding. */
+  static synchronized boolean isInUse(File file) {
+    if (counts.containsKey(file)) {
+      return true;
+    }
+
+    Long granted = grants.get(file);
+    if (granted == null) {
+      return false;
+    }
+    if (SystemClock.elapsedRealtime() - granted < GRANT_TIMEOUT_MS) {
+      return true;
+    }
+
+    grants.remove(file);
+    return false;
+  }
+
+  private OpenFiles() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,182 @@
+package com.mattprecious.telescope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes images with at most 256 distinct colors as indexed PNGs. UI screenshots usually qualify
+ * and come out several times smaller than as truecolor.
+ *
+ * <p>Use {@link #findPalette} first to check whether an image qualifies. Both passes read the image
+ * a batch of rows at a time.
+ */
+final class PalettePngWriter {
+  static final int MAX_COLORS = 256;
+
+  private static final int COLOR_TYPE_INDEXED = 3;
+  private static final int IDAT_SIZE = 64 * 1024;
+  private static final int ROWS_PER_BATCH = 32;
+
+  /**
+   * Return the distinct colors of an image as packed, non-premultiplied ARGB ints, or null if it
+   * has more than {@link #MAX_COLORS}. Stops reading as soon as the limit is exceeded.
+   */
+  static int[] findPalette(int width, int height, ParallelPngWriter.RowSource source)
+      throws IOException {
+    ColorTable table = new ColorTable();
+    int[] pixels = new int[width * ROWS_PER_BATCH];
+    for (int y = 0; y < height; y += ROWS_PER_BATCH) {
+      int rows = Math.min(ROWS_PER_BATCH, height - y);
+      source.getRows(pixels, y, rows);
+
+      int previous = ~pixels[0];
+      for (int i = 0, count = width * rows; i < count; i++) {
+        int pixel = pixels[i];
+        // Runs of the same color are by far the most common case.
+        if (pixel != previous) {
+          if (table.add(pixel) > MAX_COLORS) {
+            return null;
+          }
+          previous = pixel;
+        }
+      }
+    }
+    return table.colors();
+  }
+
+  /**
+   * Write an indexed PNG of an image whose colors are all in {@code palette}. Does not close the
+   * stream.
+   */
+  static void write(OutputStream out, int width, int height, int[] palette,
+      ParallelPngWriter.RowSource source, int compressionLevel) throws IOException {
+    ColorTable table = new ColorTable();
+    for (int color : palette) {
+      table.add(color);
+    }
+
+    int bitDepth = bitDepth(palette.length);
+    int pixelsPerByte = 8 / bitDepth;
+
+    out.write(PngWriter.SIGNATURE);
+    PngWriter.writeChunk(out, "IHDR",
+        PngWriter.header(width, height, bitDepth, COLOR_TYPE_INDEXED));
+    writePalette(out, palette);
+
+    Deflater deflater = new Deflater(compressionLevel);
+    try {
+      DeflaterOutputStream idat =
+          new DeflaterOutputStream(new PngWriter.ChunkOutputStream(out, "IDAT", IDAT_SIZE),
+              deflater, IDAT_SIZE);
+
+      int[] pixels = new int[width * ROWS_PER_BATCH];
+      // Filtering rarely helps indexed images, so every row uses the "none" filter.
+      byte[] row = new byte[1 + (width + pixelsPerByte - 1) / pixelsPerByte];
+      for (int y = 0; y < height; y += ROWS_PER_BATCH) {
+        int rows = Math.min(ROWS_PER_BATCH, height - y);
+        source.getRows(pixels, y, rows);
+
+        for (int r = 0; r < rows; r++) {
+          Arrays.fill(row, (byte) 0);
+          row[0] = PngWriter.FILTER_NONE;
+          int offset = r * width;
+          for (int x = 0; x < width; x++) {
+            int index = table.indexOf(pixels[offset + x]);
+            int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+            row[1 + x / pixelsPerByte] |= (byte) (index << shift);
+          }
+          idat.write(row);
+        }
+      }
+
+      idat.finish();
+      // Flush the last partial IDAT chunk.
+      idat.flush();
+    } finally {
+      deflater.end();
+    }
+
+    PngWriter.writeChunk(out, "IEND", new byte[0]);
+  }
+
+  private static int bitDepth(int colors) {
+    if (colors <= 2) {
+      return 1;
+    }
+    if (colors <= 4) {
+      return 2;
+    }
+    if (colors <= 16) {
+      return 4;
+    }
+    return 8;
+  }
+
+  private static void writePalette(OutputStream out, int[] palette) throws IOException {
+    byte[] rgb = new byte[palette.length * 3];
+    byte[] alpha = new byte[palette.length];
+    boolean translucent = false;
+    for (int i = 0; i < palette.length; i++) {
+      int color = palette[i];
+      rgb[i * 3] = (byte) (color >>> 16);
+      rgb[i * 3 + 1] = (byte) (color >>> 8);
+      rgb[i * 3 + 2] = (byte) color;
+      alpha[i] = (byte) (color >>> 24);
+      translucent |= alpha[i] != (byte) 0xff;
+    }
+
+    PngWriter.writeChunk(out, "PLTE", rgb);
+    if (translucent) {
+      PngWriter.writeChunk(out, "tRNS", alpha);
+    }
+  }
+
+  /** An open-addressed map from color to palette index, in insertion order. */
+  private static final class ColorTable {
+    /** Four times the maximum size, so probes stay short and always find a free slot. */
+    private static final int SLOTS = 1024;
+
+    private final int[] colors = new int[SLOTS];
+    private final int[] indices = new int[SLOTS];
+    private final int[] order = new int[MAX_COLORS + 1];
+    private int size;
+
+    ColorTable() {
+      Arrays.fill(indices, -1);
+    }
+
+    /** Add {@code color} if absent and return the number of colors. */
+    int add(int color) {
+      int slot = slot(color);
+      if (indices[slot] == -1) {
+        colors[slot] = color;
+        indices[slot] = size;
+        order[size++] = color;
+      }
+      return size;
+    }
+
+    int indexOf(int color) {
+      int index = indices[slot(color)];
+      if (index == -1) {
+        throw new IllegalStateException("Color not in palette: " + Integer.toHexString(color));
+      }
+      return index;
+    }
+
+    int[] colors() {
+      return Arrays.copyOf(order, size);
+    }
+
+    private int slot(int color) {
+      int slot = (color * 0x9e3779b9) >>> 22;
+      while (indices[slot] != -1 && colors[slot] != color) {
+        slot = (slot + 1) & (SLOTS - 1);
+      }
+      return slot;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package com.mattprecious.telescope;
+
+import android.annotation.TargetApi;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import static android.os.Build.VERSION_CODES.KITKAT;
+
+/**
+ * Writes a truecolor PNG by splitting the image into horizontal stripes that are filtered and
+ * deflated in parallel, then stitched together into a single zlib stream.
+ *
+ * <p>Every stripe but the last ends with a sync flush so that the raw deflate streams can simply be
+ * concatenated, and the stripes' Adler-32 checksums are combined for the zlib trailer. Stripes do
+ * not share a dictionary, which costs a little compression at each boundary. Sync flushing needs
+ * API 19+.
+ */
+@TargetApi(KITKAT)
+final class ParallelPngWriter {
+  /** Supplies rows of an image as packed, non-premultiplied ARGB ints. */
+  interface RowSource {
+    /**
+     * Copy {@code rows} rows starting at row {@code y} into {@code pixels}, one row every
+     * {@code width} ints. {@link ParallelPngWriter} calls this from multiple threads at once and
+     * in any order. Other users read every row once, from the top.
+     */
+    void getRows(int[] pixels, int y, int rows) throws IOException;
+  }
+
+  private static final int STRIPE_ROWS = 128;
+  private static final int IDAT_SIZE = 64 * 1024;
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_RGBA = 6;
+  /** Deflate with a 32K window, default compression. */
+  private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+  private static final int ADLER_BASE = 65521;
+
+  private static ExecutorService defaultExecutor;
+
+  private final Executor executor;
+  private final int compressionLevel;
+
+  ParallelPngWriter(Executor executor, int compressionLevel) {
+    this.executor = executor;
+    this.compressionLevel = compressionLevel;
+  }
+
+  /** A shared pool with one thread per processor. */
+  static synchronized Executor defaultExecutor() {
+    if (defaultExecutor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+          new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Telescope PNG " + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return defaultExecutor;
+  }
+
+  /** Write a complete PNG to {@code out}. Does not close the stream. */
+  void write(OutputStream out, int width, int height, boolean alpha, RowSource source)
+      throws IOException {
+    int stripes = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+    AtomicBoolean abandoned = new AtomicBoolean();
+    List<FutureTask<Stripe>> tasks = new ArrayList<>(stripes);
+    for (int i = 0; i < stripes; i++) {
+      int top = i * STRIPE_ROWS;
+      int bottom = Math.min(height, top + STRIPE_ROWS);
+      FutureTask<Stripe> task = new FutureTask<>(
+          new StripeTask(source, width, top, bottom, alpha, bottom == height, abandoned));
+      tasks.add(task);
+      executor.execute(task);
+    }
+
+    out.write(PngWriter.SIGNATURE);
+    PngWriter.writeChunk(out, "IHDR",
+        PngWriter.header(width, height, 8, alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB));
+
+    PngWriter.ChunkOutputStream idat = new PngWriter.ChunkOutputStream(out, "IDAT", IDAT_SIZE);
+    idat.write(ZLIB_HEADER);
+
+    long adler = 1;
+    boolean success = false;
+    try {
+      for (FutureTask<Stripe> task : tasks) {
+        Stripe stripe = task.get();
+        stripe.data.writeTo(idat);
+        adler = combineAdler32(adler, stripe.adler, stripe.length);
+      }
+      success = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while encoding.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Failed to encode stripe.", cause);
+    } finally {
+      if (!success) {
+        abandon(tasks, abandoned);
+      }
+    }
+
+    byte[] trailer = new byte[4];
+    PngWriter.writeInt(trailer, 0, (int) adler);
+    idat.write(trailer);
+    idat.flush();
+
+    PngWriter.writeChunk(out, "IEND", new byte[0]);
+  }
+
+  /**
+   * Stop the stripes and wait for all of them, so that none reads from the source after
+   * {@link #write} returns. The source may be backed by memory that is freed once it does.
+   */
+  private static void abandon(List<FutureTask<Stripe>> tasks, AtomicBoolean abandoned) {
+    abandoned.set(true);
+    boolean interrupted = false;
+    for (FutureTask<Stripe> task : tasks) {
+      while (true) {
+        try {
+          task.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException ignored) {
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** The Adler-32 of two buffers joined together, as zlib's {@code adler32_combine}. */
+  static long combineAdler32(long adler1, long adler2, long length2) {
+    long remainder = length2 % ADLER_BASE;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (remainder * sum1) % ADLER_BASE;
+    sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+    sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - remainder;
+    sum1 %= ADLER_BASE;
+    sum2 %= ADLER_BASE;
+    return sum1 | (sum2 << 16);
+  }
+
+  private static final class Stripe {
+    final ByteArrayOutputStream data;
+    final long adler;
+    final long length;
+
+    Stripe(ByteArrayOutputStream data, long adler, long length) {
+      this.data = data;
+      this.adler = adler;
+      this.length = length;
+    }
+  }
+
+  private final class StripeTask implements Callable<Stripe> {
+    private final RowSource source;
+    private final int width;
+    private final int top;
+    private final int bottom;
+    private final boolean alpha;
+    private final boolean last;
+    private final AtomicBoolean abandoned;
+
+    StripeTask(RowSource source, int width, int top, int bottom, boolean alpha, boolean last,
+        AtomicBoolean abandoned) {
+      this.source = source;
+      this.width = width;
+      this.top = top;
+      this.bottom = bottom;
+      this.alpha = alpha;
+      this.last = last;
+      this.abandoned = abandoned;
+    }
+
+    @Override public Stripe call() throws IOException {
+      if (abandoned.get()) {
+        return null;
+      }
+
+      int bytesPerPixel = alpha ? 4 : 3;
+      int rowBytes = width * bytesPerPixel;
+
+      // Read the row above too; the first row's filters depend on it.
+      int firstRow = Math.max(0, top - 1);
+      int[] pixels = new int[width * (bottom - firstRow)];
+      source.getRows(pixels, firstRow, bottom - firstRow);
+
+      byte[] currentRow = new byte[rowBytes];
+      byte[] previousRow = null;
+      if (firstRow < top) {
+        previousRow = new byte[rowBytes];
+        PngWriter.toBytes(pixels, 0, width, alpha, previousRow);
+      }
+      byte[][] filtered = new byte[PngWriter.FILTER_PAETH + 1][1 + rowBytes];
+
+      ByteArrayOutputStream data = new ByteArrayOutputStream(rowBytes * (bottom - top) / 2);
+      byte[] buffer = new byte[IDAT_SIZE];
+      Adler32 adler = new Adler32();
+      Deflater deflater = new Deflater(compressionLevel, true);
+      try {
+        for (int y = top; y < bottom; y++) {
+          PngWriter.toBytes(pixels, (y - firstRow) * width, width, alpha, currentRow);
+          byte[] row =
+              filtered[PngWriter.filterRow(currentRow, previousRow, bytesPerPixel, filtered)];
+          adler.update(row);
+
+          deflater.setInput(row);
+          while (!deflater.needsInput()) {
+            data.write(buffer, 0, deflater.deflate(buffer));
+          }
+
+          byte[] swap = previousRow != null ? previousRow : new byte[rowBytes];
+          previousRow = currentRow;
+          currentRow = swap;
+        }
+
+        if (last) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            data.write(buffer, 0, deflater.deflate(buffer));
+          }
+        } else {
+          // Byte-align the output without ending the stream so the next stripe can follow it.
+          int count;
+          do {
+            count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            data.write(buffer, 0, count);
+          } while (count == buffer.length);
+        }
+      } finally {
+        deflater.end();
+      }
+
+      return new Stripe(data, adler.getValue(), (long) (bottom - top) * (1 + rowBytes));
+    }
+  }
+}
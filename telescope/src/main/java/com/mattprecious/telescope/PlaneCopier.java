@@ -0,0 +1,77 @@
+package com.mattprecious.telescope;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.media.Image;
+import java.nio.ByteBuffer;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+/**
+ * Copies an {@link android.graphics.PixelFormat#RGBA_8888 RGBA_8888} {@link Image.Plane} into an
+ * exact-size {@link Bitmap}. Row padding and pixel strides are handled while copying so that no
+ * padded intermediate bitmap is needed. A staging buffer is kept between copies, so an instance
+ * must only be used from one thread at a time.
+ */
+@TargetApi(LOLLIPOP)
+final class PlaneCopier {
+  private static final int BYTES_PER_PIXEL = 4;
+
+  private ByteBuffer staging;
+
+  /** Copy the top-left {@code bitmap}-sized region of {@code plane} into {@code bitmap}. */
+  void copy(Image.Plane plane, Bitmap bitmap) {
+    copy(plane, 0, 0, bitmap);
+  }
+
+  /**
+   * Copy the {@code bitmap}-sized region of {@code plane} starting at {@code left}, {@code top}
+   * into {@code bitmap}. Only the rows and columns inside the region are read.
+   */
+  void copy(Image.Plane plane, int left, int top, Bitmap bitmap) {
+    ByteBuffer buffer = plane.getBuffer();
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    int rowBytes = width * BYTES_PER_PIXEL;
+
+    if (left == 0 && top == 0 && pixelStride == BYTES_PER_PIXEL && rowStride == rowBytes) {
+      // Already tightly packed. Copy straight from the plane.
+      buffer.rewind();
+      bitmap.copyPixelsFromBuffer(buffer);
+      return;
+    }
+
+    ByteBuffer staging = obtainStaging(rowBytes * height);
+    ByteBuffer source = buffer.duplicate();
+    for (int y = 0; y < height; y++) {
+      int rowStart = (top + y) * rowStride + left * pixelStride;
+      if (pixelStride == BYTES_PER_PIXEL) {
+        source.limit(rowStart + rowBytes);
+        source.position(rowStart);
+        staging.put(source);
+      } else {
+        for (int x = 0; x < width; x++) {
+          int pixelStart = rowStart + x * pixelStride;
+          for (int i = 0; i < BYTES_PER_PIXEL; i++) {
+            staging.put(buffer.get(pixelStart + i));
+          }
+        }
+      }
+    }
+
+    staging.flip();
+    bitmap.copyPixelsFromBuffer(staging);
+  }
+
+  private ByteBuffer obtainStaging(int size) {
+    if (staging == null || staging.capacity() < size) {
+      staging = ByteBuffer.allocateDirect(size);
+    }
+
+    staging.clear();
+    staging.limit(size);
+    return staging;
+  }
+}
@@ -0,0 +1,279 @@
+package com.mattprecious.telescope;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a truecolor PNG one batch of rows at a time, so that an image never has to be held in
+ * memory all at once. Rows are given as packed, non-premultiplied ARGB ints.
+ *
+ * <p>If the final height is not known when writing starts, write a placeholder height and fix it
+ * up with {@link #patchHeight(File, int)} once the file has been closed.
+ */
+final class PngWriter {
+  static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+  static final int FILTER_NONE = 0;
+  static final int FILTER_SUB = 1;
+  static final int FILTER_UP = 2;
+  static final int FILTER_AVERAGE = 3;
+  static final int FILTER_PAETH = 4;
+
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_RGBA = 6;
+  private static final int IDAT_SIZE = 64 * 1024;
+  /** Offset of the IHDR chunk's type field. The data, then the CRC, directly follow it. */
+  private static final int IHDR_TYPE_OFFSET = SIGNATURE.length + 4;
+  private static final int IHDR_DATA_LENGTH = 13;
+
+  private final OutputStream out;
+  private final int width;
+  private final boolean alpha;
+  private final int bytesPerPixel;
+  private final DeflaterOutputStream idat;
+  private final Deflater deflater;
+  private final byte[][] filtered;
+  private byte[] currentRow;
+  private byte[] previousRow;
+  private boolean firstRow = true;
+
+  PngWriter(OutputStream out, int width, int height, boolean alpha, int compressionLevel)
+      throws IOException {
+    this.out = out;
+    this.width = width;
+    this.alpha = alpha;
+    this.bytesPerPixel = alpha ? 4 : 3;
+
+    int rowBytes = width * bytesPerPixel;
+    currentRow = new byte[rowBytes];
+    previousRow = new byte[rowBytes];
+    filtered = new byte[FILTER_PAETH + 1][1 + rowBytes];
+
+    out.write(SIGNATURE);
+    writeChunk(out, "IHDR", header(width, height, 8, alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB));
+
+    deflater = new Deflater(compressionLevel);
+    idat = new DeflaterOutputStream(new ChunkOutputStream(out, "IDAT", IDAT_SIZE), deflater,
+        IDAT_SIZE);
+  }
+
+  /**
+   * Write {@code rows} rows of pixels. Row {@code i} starts at {@code offset + i * stride} in
+   * {@code pixels}.
+   */
+  void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+    for (int y = 0; y < rows; y++) {
+      toBytes(pixels, offset + y * stride, width, alpha, currentRow);
+
+      byte[] row = filtered[filterRow(currentRow, firstRow ? null : previousRow, bytesPerPixel,
+          filtered)];
+      idat.write(row);
+
+      byte[] swap = previousRow;
+      previousRow = currentRow;
+      currentRow = swap;
+      firstRow = false;
+    }
+  }
+
+  /** Finish the image data and write the end of the file. Does not close the stream. */
+  void finish() throws IOException {
+    idat.finish();
+    deflater.end();
+    // Flush the last partial IDAT chunk.
+    idat.flush();
+    writeChunk(out, "IEND", new byte[0]);
+  }
+
+  /** Rewrite the height of the PNG in {@code file}. */
+  static void patchHeight(File file, int height) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      byte[] chunk = new byte[4 + IHDR_DATA_LENGTH];
+      raf.seek(IHDR_TYPE_OFFSET);
+      raf.readFully(chunk);
+      writeInt(chunk, 4 + 4, height);
+
+      CRC32 crc = new CRC32();
+      crc.update(chunk);
+
+      raf.seek(IHDR_TYPE_OFFSET);
+      raf.write(chunk);
+      raf.writeInt((int) crc.getValue());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Build the data of an IHDR chunk. */
+  static byte[] header(int width, int height, int bitDepth, int colorType) {
+    byte[] data = new byte[IHDR_DATA_LENGTH];
+    writeInt(data, 0, width);
+    writeInt(data, 4, height);
+    data[8] = (byte) bitDepth;
+    data[9] = (byte) colorType;
+    // Compression, filter and interlace methods are all 0.
+    return data;
+  }
+
+  static void writeChunk(OutputStream out, String type, byte[] data) throws IOException {
+    writeChunk(out, type, data, 0, data.length);
+  }
+
+  static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length)
+      throws IOException {
+    byte[] header = new byte[8];
+    writeInt(header, 0, length);
+    for (int i = 0; i < 4; i++) {
+      header[4 + i] = (byte) type.charAt(i);
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(header, 4, 4);
+    crc.update(data, offset, length);
+
+    byte[] footer = new byte[4];
+    writeInt(footer, 0, (int) crc.getValue());
+
+    out.write(header);
+    out.write(data, offset, length);
+    out.write(footer);
+  }
+
+  static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  /** Convert a row of ARGB ints to RGBA or RGB bytes. */
+  static void toBytes(int[] pixels, int offset, int width, boolean alpha, byte[] row) {
+    int i = 0;
+    for (int x = 0; x < width; x++) {
+      int pixel = pixels[offset + x];
+      row[i++] = (byte) (pixel >>> 16);
+      row[i++] = (byte) (pixel >>> 8);
+      row[i++] = (byte) pixel;
+      if (alpha) {
+        row[i++] = (byte) (pixel >>> 24);
+      }
+    }
+  }
+
+  /**
+   * Apply each PNG filter to {@code row} and return the index of the one estimated to compress
+   * best. Each {@code filtered[type]} receives the filter type byte followed by the filtered row.
+   *
+   * @param previous The unfiltered row above, or null for the first row.
+   */
+  static int filterRow(byte[] row, byte[] previous, int bytesPerPixel, byte[][] filtered) {
+    int length = row.length;
+    long[] sums = new long[FILTER_PAETH + 1];
+
+    for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+      filtered[type][0] = (byte) type;
+    }
+
+    for (int i = 0; i < length; i++) {
+      int x = row[i] & 0xff;
+      int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+      int b = previous != null ? previous[i] & 0xff : 0;
+      int c = previous != null && i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+
+      byte none = (byte) x;
+      byte sub = (byte) (x - a);
+      byte up = (byte) (x - b);
+      byte average = (byte) (x - ((a + b) >>> 1));
+      byte paeth = (byte) (x - paethPredictor(a, b, c));
+
+      filtered[FILTER_NONE][i + 1] = none;
+      filtered[FILTER_SUB][i + 1] = sub;
+      filtered[FILTER_UP][i + 1] = up;
+      filtered[FILTER_AVERAGE][i + 1] = average;
+      filtered[FILTER_PAETH][i + 1] = paeth;
+
+      // The usual heuristic: treat the bytes as signed and minimize the sum of their magnitudes.
+      sums[FILTER_NONE] += Math.abs(none);
+      sums[FILTER_SUB] += Math.abs(sub);
+      sums[FILTER_UP] += Math.abs(up);
+      sums[FILTER_AVERAGE] += Math.abs(average);
+      sums[FILTER_PAETH] += Math.abs(paeth);
+    }
+
+    int best = FILTER_NONE;
+    for (int type = FILTER_SUB; type <= FILTER_PAETH; type++) {
+      if (sums[type] < sums[best]) {
+        best = type;
+      }
+    }
+    return best;
+  }
+
+  private static int paethPredictor(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) {
+      return a;
+    }
+    if (pb <= pc) {
+      return b;
+    }
+    return c;
+  }
+
+  /** Splits everything written to it into chunks of a given type and maximum size. */
+  static final class ChunkOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final String type;
+    private final byte[] buffer;
+    private int count;
+
+    ChunkOutputStream(OutputStream out, String type, int chunkSize) {
+      this.out = out;
+      this.type = type;
+      this.buffer = new byte[chunkSize];
+    }
+
+    @Override public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        flushChunk();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          flushChunk();
+        }
+
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /** Write any buffered data as a chunk. */
+    @Override public void flush() throws IOException {
+      flushChunk();
+      out.flush();
+    }
+
+    private void flushChunk() throws IOException {
+      if (count > 0) {
+        writeChunk(out, type, buffer, 0, count);
+        count = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,330 @@
+package com.mattprecious.telescope;
+
+import android.annotation.TargetApi;
+import android.graphics.PixelFormat;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.projection.MediaProjection;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Surface;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+/**
+ * Owns a {@link MediaProjection} along with the {@link VirtualDisplay} and {@link ImageReader} used
+ * to read frames from it. Between captures the virtual display is paused by detaching its surface
+ * so that it does not render, which lets a session be kept alive and reused without prompting for
+ * permission again.
+ *
+ * <p>Android 14 only allows one virtual display per projection for apps targeting it, so recorders
+ * don't create their own. They {@link #attach} their surface to the session's display instead.
+ *
+ * <p>All work is done on the provided background {@link Handler}.
+ */
+@TargetApi(LOLLIPOP)
+final class ProjectionSession {
+  /** How long the display must go without a new frame to be considered settled. */
+  private static final long SETTLE_MS = 50;
+  /** Give up waiting for the display to settle after this long and use the latest frame. */
+  private static final long MAX_SETTLE_MS = 1000;
+
+  /** Callback for {@link #capture}. */
+  interface FrameCallback {
+    /**
+     * Called on the background handler with the next frame of the display. The image is closed
+     * after this method returns.
+     */
+    void onFrame(Image image);
+  }
+
+  private final MediaProjection projection;
+  private final Handler handler;
+
+  private volatile boolean released;
+
+  // Only accessed on the handler's thread.
+  private ImageReader imageReader;
+  private int width;
+  private int height;
+  private int densityDpi;
+  private VirtualDisplay display;
+  private int displayWidth;
+  private int displayHeight;
+  private int displayDensityDpi;
+  private Surface attachedSurface;
+  private int attachedWidth;
+  private int attachedHeight;
+  private int attachedDensityDpi;
+  private FrameCallback pendingCallback;
+  private boolean pendingSettle;
+  private long settleDeadline;
+  private Image settlingImage;
+
+  private final Runnable deliverSettled = new Runnable() {
+    @Override public void run() {
+      Image image = settlingImage;
+      settlingImage = null;
+      if (image != null) {
+        deliver(image);
+      }
+    }
+  };
+
+  private final ImageReader.OnImageAvailableListener imageListener =
+      new ImageReader.OnImageAvailableListener() {
+        @Override public void onImageAvailable(ImageReader reader) {
+          // Only the newest frame matters. Drop the one we were holding before acquiring another so
+          // that we stay within the reader's image limit.
+          closeSettlingImage();
+
+          Image image = reader.acquireLatestImage();
+          if (image == null) {
+            return;
+          }
+
+          if (pendingCallback == null) {
+            // A frame that was already in flight when the display was paused.
+            image.close();
+            return;
+          }
+
+          if (!pendingSettle) {
+            deliver(image);
+            return;
+          }
+
+          // Frames only arrive when the screen changes. Hold on to this one until the screen has
+          // been still for a moment, which means anything that was animating away is gone.
+          settlingImage = image;
+          if (SystemClock.uptimeMillis() >= settleDeadline) {
+            deliverSettled.run();
+          } else {
+            handler.postDelayed(deliverSettled, SETTLE_MS);
+          }
+        }
+      };
+
+  ProjectionSession(MediaProjection projection, Handler handler) {
+    this.projection = projection;
+    this.handler = handler;
+
+    projection.registerCallback(new MediaProjection.Callback() {
+      @Override public void onStop() {
+        // The projection was revoked by the system or the user.
+        release();
+      }
+    }, handler);
+  }
+
+  boolean isReleased() {
+    return released;
+  }
+
+  /**
+   * Resume the virtual display at the requested size and deliver its next frame to
+   * {@code callback}. The display is paused again once the frame has been delivered.
+   *
+   * @param waitForSettle Deliver the first frame after which the screen stops changing rather
+   * than the very next frame. Used to wait out things like a dismissing dialog.
+   */
+  void capture(final int width, final int height, final int densityDpi,
+      final boolean waitForSettle, final FrameCallback callback) {
+    handler.post(new Runnable() {
+      @Override public void run() {
+        if (released) {
+          return;
+        }
+
+        pendingCallback = callback;
+        pendingSettle = waitForSettle;
+        settleDeadline = SystemClock.uptimeMillis() + MAX_SETTLE_MS;
+        resume(width, height, densityDpi);
+      }
+    });
+  }
+
+  /**
+   * Set up the paused virtual display and reader for a capture of the given size ahead of time, so
+   * that a following {@link #capture} only has to resume the display.
+   */
+  void prepare(final int width, final int height, final int densityDpi) {
+    handler.post(new Runnable() {
+      @Override public void run() {
+        if (released || pendingCallback != null) {
+          return;
+        }
+
+        configure(width, height, densityDpi);
+      }
+    });
+  }
+
+  /**
+   * Render the display into {@code surface} at the given size until it is {@link #detach detached},
+   * replacing any other attached surface. A {@link #capture} takes over the display until its frame
+   * has been delivered. Must be called on the handler's thread.
+   */
+  void attach(Surface surface, int width, int height, int densityDpi) {
+    if (released) {
+      return;
+    }
+
+    attachedSurface = surface;
+    attachedWidth = width;
+    attachedHeight = height;
+    attachedDensityDpi = densityDpi;
+    if (pendingCallback == null) {
+      show(surface, width, height, densityDpi);
+    }
+  }
+
+  /**
+   * Like {@link #attach}, but only if no other surface is attached.
+   *
+   * @return false if another surface has the display.
+   */
+  boolean attachIfIdle(Surface surface, int width, int height, int densityDpi) {
+    if (attachedSurface != null && attachedSurface != surface) {
+      return false;
+    }
+
+    attach(surface, width, height, densityDpi);
+    return true;
+  }
+
+  /**
+   * Stop rendering into {@code surface}. Does nothing if it is not the attached surface. Must be
+   * called on the handler's thread.
+   */
+  void detach(Surface surface) {
+    if (attachedSurface != surface) {
+      return;
+    }
+
+    attachedSurface = null;
+    if (pendingCallback == null) {
+      pause();
+    }
+  }
+
+  /** Release the virtual display and stop the projection. Safe to call more than once. */
+  void release() {
+    if (released) {
+      return;
+    }
+    released = true;
+
+    handler.post(new Runnable() {
+      @Override public void run() {
+        pendingCallback = null;
+        closeSettlingImage();
+
+        if (display != null) {
+          display.release();
+          display = null;
+        }
+
+        if (imageReader != null) {
+          imageReader.close();
+          imageReader = null;
+        }
+
+        attachedSurface = null;
+
+        projection.stop();
+      }
+    });
+  }
+
+  private void resume(int width, int height, int densityDpi) {
+    configure(width, height, densityDpi);
+    show(imageReader.getSurface(), width, height, densityDpi);
+  }
+
+  /**
+   * Make sure the reader matches the requested size and that the display exists, without changing
+   * what the display renders into.
+   */
+  private void configure(int width, int height, int densityDpi) {
+    if (imageReader != null
+        && this.width == width
+        && this.height == height
+        && this.densityDpi == densityDpi) {
+      return;
+    }
+
+    // The display size changed (rotation, or the first capture). Start over with a new reader.
+    ImageReader oldReader = imageReader;
+
+    this.width = width;
+    this.height = height;
+    this.densityDpi = densityDpi;
+    imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+    imageReader.setOnImageAvailableListener(imageListener, handler);
+
+    if (display == null) {
+      show(null, width, height, densityDpi);
+    } else if (oldReader != null && pendingCallback != null) {
+      // The display may still be rendering into the old reader for an earlier capture.
+      display.setSurface(null);
+    }
+
+    if (oldReader != null) {
+      oldReader.close();
+    }
+  }
+
+  private void deliver(Image image) {
+    FrameCallback callback = pendingCallback;
+    pendingCallback = null;
+
+    try {
+      pause();
+      callback.onFrame(image);
+    } finally {
+      image.close();
+    }
+  }
+
+  private void closeSettlingImage() {
+    handler.removeCallbacks(deliverSettled);
+    if (settlingImage != null) {
+      settlingImage.close();
+      settlingImage = null;
+    }
+  }
+
+  /** Render the display into {@code surface} at the given size, creating the display if needed. */
+  private void show(Surface surface, int width, int height, int densityDpi) {
+    if (display == null) {
+      display = projection.createVirtualDisplay("telescope", width, height, densityDpi,
+          DisplayManager.VIRTUAL_DISPLAY_FLAG_PRESENTATION, surface, null, null);
+    } else {
+      if (displayWidth != width || displayHeight != height || displayDensityDpi != densityDpi) {
+        display.setSurface(null);
+        display.resize(width, height, densityDpi);
+      }
+      display.setSurface(surface);
+    }
+
+    displayWidth = width;
+    displayHeight = height;
+    displayDensityDpi = densityDpi;
+  }
+
+  /** Go back to rendering into the attached surface, if any, after a capture. */
+  private void pause() {
+    if (display == null) {
+      return;
+    }
+
+    if (attachedSurface != null) {
+      show(attachedSurface, attachedWidth, attachedHeight, attachedDensityDpi);
+    } else {
+      display.setSurface(null);
+    }
+  }
+}
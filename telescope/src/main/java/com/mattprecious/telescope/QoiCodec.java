@@ -0,0 +1,301 @@
+package com.mattprecious.telescope;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes the "Quite OK Image" format: a lossless format written in a single pass with
+ * no entropy coding. It is many times faster to write than PNG, for files not much larger, which
+ * makes it a good format to capture to when the screenshot is converted later.
+ *
+ * @see <a href="https://qoiformat.org/qoi-specification.pdf">QOI specification</a>
+ */
+final class QoiCodec {
+  static final String EXTENSION = "qoi";
+
+  private static final int MAGIC = 0x716f6966; // "qoif"
+  private static final int HEADER_SIZE = 14;
+  private static final byte[] END = { 0, 0, 0, 0, 0, 0, 0, 1 };
+  private static final int OP_INDEX = 0x00;
+  private static final int OP_DIFF = 0x40;
+  private static final int OP_LUMA = 0x80;
+  private static final int OP_RUN = 0xc0;
+  private static final int OP_RGB = 0xfe;
+  private static final int OP_RGBA = 0xff;
+  private static final int MASK = 0xc0;
+  private static final int MAX_RUN = 62;
+  private static final int ROWS_PER_BATCH = 32;
+
+  /** Write an image as QOI. Does not close the stream. */
+  static void encode(OutputStream out, int width, int height, boolean alpha,
+      ParallelPngWriter.RowSource source) throws IOException {
+    // Worst case is five bytes per pixel. Flush well before that can overflow.
+    byte[] buffer = new byte[64 * 1024];
+    int position = 0;
+
+    PngWriter.writeInt(buffer, 0, MAGIC);
+    PngWriter.writeInt(buffer, 4, width);
+    PngWriter.writeInt(buffer, 8, height);
+    buffer[12] = (byte) (alpha ? 4 : 3);
+    buffer[13] = 0; // sRGB with linear alpha.
+    position += HEADER_SIZE;
+
+    int[] index = new int[64];
+    int[] pixels = new int[width * ROWS_PER_BATCH];
+    int previous = 0xff000000;
+    int run = 0;
+
+    for (int y = 0; y < height; y += ROWS_PER_BATCH) {
+      int rows = Math.min(ROWS_PER_BATCH, height - y);
+      source.getRows(pixels, y, rows);
+
+      for (int i = 0, count = width * rows; i < count; i++) {
+        if (position > buffer.length - 8) {
+          out.write(buffer, 0, position);
+          position = 0;
+        }
+
+        int pixel = alpha ? pixels[i] : pixels[i] | 0xff000000;
+        if (pixel == previous) {
+          if (++run == MAX_RUN) {
+            buffer[position++] = (byte) (OP_RUN | (run - 1));
+            run = 0;
+          }
+          continue;
+        }
+
+        if (run > 0) {
+          buffer[position++] = (byte) (OP_RUN | (run - 1));
+          run = 0;
+        }
+
+        int hash = hash(pixel);
+        if (index[hash] == pixel) {
+          buffer[position++] = (byte) (OP_INDEX | hash);
+        } else {
+          index[hash] = pixel;
+
+          int r = (pixel >>> 16) & 0xff;
+          int g = (pixel >>> 8) & 0xff;
+          int b = pixel & 0xff;
+          if ((pixel >>> 24) == (previous >>> 24)) {
+            int dr = (byte) (r - ((previous >>> 16) & 0xff));
+            int dg = (byte) (g - ((previous >>> 8) & 0xff));
+            int db = (byte) (b - (previous & 0xff));
+            int drDg = dr - dg;
+            int dbDg = db - dg;
+
+            if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+              buffer[position++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+            } else if (dg >= -32 && dg <= 31 && drDg >= -8 && drDg <= 7 && dbDg >= -8
+                && dbDg <= 7) {
+              buffer[position++] = (byte) (OP_LUMA | (dg + 32));
+              buffer[position++] = (byte) ((drDg + 8) << 4 | (dbDg + 8));
+            } else {
+              buffer[position++] = (byte) OP_RGB;
+              buffer[position++] = (byte) r;
+              buffer[position++] = (byte) g;
+              buffer[position++] = (byte) b;
+            }
+          } else {
+            buffer[position++] = (byte) OP_RGBA;
+            buffer[position++] = (byte) r;
+            buffer[position++] = (byte) g;
+            buffer[position++] = (byte) b;
+            buffer[position++] = (byte) (pixel >>> 24);
+          }
+        }
+        previous = pixel;
+      }
+    }
+
+    if (run > 0) {
+      buffer[position++] = (byte) (OP_RUN | (run - 1));
+    }
+    out.write(buffer, 0, position);
+    out.write(END);
+  }
+
+  /**
+   * Convert the QOI image in {@code qoi} to a PNG at {@code png}, replacing it atomically. If
+   * {@code palette} is true, images with few enough colors are written as indexed PNGs.
+   */
+  static void toPng(File qoi, File png, int compressionLevel, boolean palette)
+      throws IOException {
+    File temp = new File(png.getParentFile(), png.getName() + ".tmp");
+    Reader reader = new Reader(qoi);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+    boolean success = false;
+    try {
+      int width = reader.width;
+      int height = reader.height;
+      int[] colors = palette ? PalettePngWriter.findPalette(width, height, reader) : null;
+      if (colors != null) {
+        PalettePngWriter.write(out, width, height, colors, reader, compressionLevel);
+      } else {
+        PngWriter writer = new PngWriter(out, width, height, reader.alpha, compressionLevel);
+        int[] pixels = new int[width * ROWS_PER_BATCH];
+        for (int y = 0; y < height; y += ROWS_PER_BATCH) {
+          int rows = Math.min(ROWS_PER_BATCH, height - y);
+          reader.getRows(pixels, y, rows);
+          writer.writeRows(pixels, 0, width, rows);
+        }
+        writer.finish();
+      }
+      success = true;
+    } finally {
+      reader.close();
+      out.close();
+      if (!success) {
+        temp.delete();
+      }
+    }
+
+    if (!temp.renameTo(png)) {
+      temp.delete();
+      throw new IOException("Unable to write " + png);
+    }
+  }
+
+  /** Whether {@code file} is named as a QOI image. */
+  static boolean isQoi(File file) {
+    return file.getName().endsWith('.' + EXTENSION);
+  }
+
+  /** The PNG that the QOI image {@code file} converts to. */
+  static File pngFile(File file) {
+    String name = file.getName();
+    return new File(file.getParentFile(),
+        name.substring(0, name.length() - EXTENSION.length()) + "png");
+  }
+
+  private static int hash(int pixel) {
+    int r = (pixel >>> 16) & 0xff;
+    int g = (pixel >>> 8) & 0xff;
+    int b = pixel & 0xff;
+    int a = pixel >>> 24;
+    return (r * 3 + g * 5 + b * 7 + a * 11) % 64;
+  }
+
+  /** Reads the rows of a QOI file. Reading an earlier row than the last starts over. */
+  static final class Reader implements ParallelPngWriter.RowSource, Closeable {
+    final int width;
+    final int height;
+    final boolean alpha;
+
+    private final File file;
+    private DataInputStream in;
+    private Decoder decoder;
+    private int nextRow;
+
+    Reader(File file) throws IOException {
+      this.file = file;
+      open();
+      width = in.readInt();
+      height = in.readInt();
+      alpha = in.readUnsignedByte() == 4;
+      in.readUnsignedByte(); // Color space.
+    }
+
+    @Override public void getRows(int[] pixels, int y, int rows) throws IOException {
+      if (y < nextRow) {
+        close();
+        open();
+        in.skipBytes(HEADER_SIZE - 4);
+      }
+      while (nextRow < y) {
+        // Skip ahead a row at a time.
+        decoder.read(pixels, width);
+        nextRow++;
+      }
+
+      decoder.read(pixels, width * rows);
+      nextRow += rows;
+    }
+
+    @Override public void close() throws IOException {
+      in.close();
+    }
+
+    private void open() throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC) {
+        in.close();
+        throw new IOException("Not a QOI image: " + file);
+      }
+      decoder = new Decoder(in);
+      nextRow = 0;
+    }
+  }
+
+  /** Decodes pixels as packed, non-premultiplied ARGB ints, carrying state between calls. */
+  private static final class Decoder {
+    private final InputStream in;
+    private final int[] index = new int[64];
+    private int pixel = 0xff000000;
+    private int run;
+
+    Decoder(InputStream in) {
+      this.in = in;
+    }
+
+    void read(int[] pixels, int count) throws IOException {
+      for (int i = 0; i < count; i++) {
+        if (run > 0) {
+          run--;
+          pixels[i] = pixel;
+          continue;
+        }
+
+        int op = readByte();
+        if (op == OP_RGB) {
+          pixel = (pixel & 0xff000000) | readByte() << 16 | readByte() << 8 | readByte();
+        } else if (op == OP_RGBA) {
+          int rgb = readByte() << 16 | readByte() << 8 | readByte();
+          pixel = readByte() << 24 | rgb;
+        } else if ((op & MASK) == OP_INDEX) {
+          pixel = index[op];
+        } else if ((op & MASK) == OP_DIFF) {
+          pixel = add(pixel, ((op >> 4) & 3) - 2, ((op >> 2) & 3) - 2, (op & 3) - 2);
+        } else if ((op & MASK) == OP_LUMA) {
+          int dg = (op & 0x3f) - 32;
+          int next = readByte();
+          pixel = add(pixel, dg + (next >> 4) - 8, dg, dg + (next & 0xf) - 8);
+        } else {
+          run = op & 0x3f;
+        }
+
+        index[hash(pixel)] = pixel;
+        pixels[i] = pixel;
+      }
+    }
+
+    private int readByte() throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("Truncated QOI image.");
+      }
+      return b;
+    }
+
+    private static int add(int pixel, int dr, int dg, int db) {
+      int r = (((pixel >>> 16) & 0xff) + dr) & 0xff;
+      int g = (((pixel >>> 8) & 0xff) + dg) & 0xff;
+      int b = ((pixel & 0xff) + db) & 0xff;
+      return (pixel & 0xff000000) | r << 16 | g << 8 | b;
+    }
+  }
+
+  private QoiCodec() {
+    throw new AssertionError("No instances.");
+  }
+}
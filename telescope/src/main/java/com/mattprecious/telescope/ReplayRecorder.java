@@ -0,0 +1,143 @@
+package com.mattprecious.telescope;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import java.io.ByteArrayOutputStream;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+/**
+ * Records downscaled frames of a {@link ProjectionSession} into a {@link FrameRingBuffer} at a low
+ * frame rate. The recorder's surface is only attached to the session's display while a frame is
+ * wanted. Samples are skipped while something else, like a screen recording, has the display.
+ */
+@TargetApi(LOLLIPOP)
+final class ReplayRecorder {
+  private static final int FRAMES_PER_SECOND = 2;
+  private static final long SAMPLE_INTERVAL_MS = 1000 / FRAMES_PER_SECOND;
+  private static final int MAX_DIMENSION = 480;
+  private static final int JPEG_QUALITY = 50;
+
+  private final ProjectionSession session;
+  private final Handler handler;
+  private final FrameRingBuffer frames;
+
+  // Only accessed on the handler's thread.
+  private final PlaneCopier planeCopier = new PlaneCopier();
+  private final ExposedByteArrayOutputStream encoded = new ExposedByteArrayOutputStream();
+  private ImageReader imageReader;
+  private int width;
+  private int height;
+  private int densityDpi;
+  private Bitmap frame;
+  private boolean stopped;
+
+  private final Runnable resume = new Runnable() {
+    @Override public void run() {
+      if (stopped) {
+        return;
+      }
+
+      if (session.isReleased()) {
+        releaseReader();
+        return;
+      }
+
+      // Frames only arrive when the screen changes, so this may still be attached from last time.
+      // Check back later in case the display was taken over meanwhile.
+      session.attachIfIdle(imageReader.getSurface(), width, height, densityDpi);
+      handler.postDelayed(resume, SAMPLE_INTERVAL_MS);
+    }
+  };
+
+  private final ImageReader.OnImageAvailableListener imageListener =
+      new ImageReader.OnImageAvailableListener() {
+        @Override public void onImageAvailable(ImageReader reader) {
+          Image image = reader.acquireLatestImage();
+          if (image == null) {
+            return;
+          }
+
+          try {
+            if (stopped) {
+              return;
+            }
+
+            // Stop rendering until the next sample is due.
+            handler.removeCallbacks(resume);
+            session.detach(reader.getSurface());
+            planeCopier.copy(image.getPlanes()[0], frame);
+          } finally {
+            image.close();
+          }
+
+          encoded.reset();
+          frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, encoded);
+          frames.add(encoded.buffer(), encoded.size(), System.currentTimeMillis());
+
+          handler.postDelayed(resume, SAMPLE_INTERVAL_MS);
+        }
+      };
+
+  ReplayRecorder(ProjectionSession session, Handler handler, int seconds, int maxBytes) {
+    this.session = session;
+    this.handler = handler;
+    this.frames = new FrameRingBuffer(maxBytes, seconds * 1000L);
+  }
+
+  /** Start recording a display of the given size. */
+  void start(final int displayWidth, final int displayHeight, final int densityDpi) {
+    handler.post(new Runnable() {
+      @Override public void run() {
+        if (stopped || session.isReleased()) {
+          return;
+        }
+
+        float scale = Math.min(1f, (float) MAX_DIMENSION / Math.max(displayWidth, displayHeight));
+        width = Math.max(1, Math.round(displayWidth * scale));
+        height = Math.max(1, Math.round(displayHeight * scale));
+        ReplayRecorder.this.densityDpi = Math.max(1, Math.round(densityDpi * scale));
+
+        frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+        imageReader.setOnImageAvailableListener(imageListener, handler);
+        resume.run();
+      }
+    });
+  }
+
+  /** Stop recording and detach from the session's display. Recorded frames remain available. */
+  void stop() {
+    handler.post(new Runnable() {
+      @Override public void run() {
+        stopped = true;
+        handler.removeCallbacks(resume);
+        releaseReader();
+      }
+    });
+  }
+
+  /** Copy out the frames currently in the buffer. May be called from any thread. */
+  InstantReplay snapshot() {
+    return frames.snapshot(System.currentTimeMillis());
+  }
+
+  private void releaseReader() {
+    if (imageReader != null) {
+      session.detach(imageReader.getSurface());
+      imageReader.close();
+      imageReader = null;
+    }
+  }
+
+  /** Allows encoding into a reused buffer without copying it back out. */
+  private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+}
@@ -13,6 +13,11 @@ import android.util.Log;
 public final class RequestCaptureActivity extends Activity {
   public static final String RESULT_EXTRA_CODE = "code";
   public static final String RESULT_EXTRA_DATA = "data";
+  /**
+   * @deprecated No longer sent. Captures now wait for the permission dialog to leave the screen
+   * instead.
+   */
+  @Deprecated
   public static final String RESULT_EXTRA_PROMPT_SHOWN = "prompt-shown";
 
   private static final String TAG = "TelescopeCapture";
@@ -22,8 +27,6 @@ public final class RequestCaptureActivity extends Activity {
     return context.getPackageName() + ".telescope.CAPTURE";
   }
 
-  private long requestStartTime;
-
   @Override protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
 
@@ -41,7 +44,6 @@ public final class RequestCaptureActivity extends Activity {
         (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
     Intent intent = projectionManager.createScreenCaptureIntent();
 
-    requestStartTime = System.currentTimeMillis();
     startActivityForResult(intent, REQUEST_CODE);
   }
 
@@ -50,7 +52,6 @@ public final class RequestCaptureActivity extends Activity {
       Intent intent = new Intent(getResultBroadcastAction(this));
       intent.putExtra(RESULT_EXTRA_CODE, resultCode);
       intent.putExtra(RESULT_EXTRA_DATA, data);
-      intent.putExtra(RESULT_EXTRA_PROMPT_SHOWN, promptShown());
       sendBroadcast(intent);
       finish();
       return;
@@ -58,9 +59,4 @@ public final class RequestCaptureActivity extends Activity {
 
     super.onActivityResult(requestCode, resultCode, data);
   }
-
-  private boolean promptShown() {
-    // Assume that the prompt was shown if the response took 200ms or more to return.
-    return System.currentTimeMillis() - requestStartTime > 200;
-  }
 }
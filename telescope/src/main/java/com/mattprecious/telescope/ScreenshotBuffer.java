@@ -0,0 +1,69 @@
+package com.mattprecious.telescope;
+
+import android.support.annotation.NonNull;
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded screenshot kept in memory instead of being saved to a file, as passed to
+ * {@link Lens#onCapture(ScreenshotBuffer)} when
+ * {@link TelescopeLayout#setMemoryStorage(boolean) memory storage} is enabled.
+ *
+ * <p>The bytes live in a direct buffer that is reused by later captures, so call
+ * {@link #release()} once done with them, from any thread. They must not be read after that.
+ */
+public final class ScreenshotBuffer {
+  private final ByteBuffer bytes;
+  private final BufferPool pool;
+  private final int size;
+  private final String fileExtension;
+  private final int width;
+  private final int height;
+  private boolean released;
+
+  ScreenshotBuffer(ByteBuffer bytes, BufferPool pool, String fileExtension, int width,
+      int height) {
+    this.bytes = bytes;
+    this.pool = pool;
+    this.size = bytes.limit();
+    this.fileExtension = fileExtension;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * The encoded screenshot, from position 0 to the limit. The returned buffer is read-only and
+   * has its own position and limit.
+   */
+  @NonNull public synchronized ByteBuffer getBytes() {
+    if (released) {
+      throw new IllegalStateException("Screenshot buffer was released.");
+    }
+    return bytes.asReadOnlyBuffer();
+  }
+
+  /** The number of encoded bytes. */
+  public int getSize() {
+    return size;
+  }
+
+  /** The extension a file holding these bytes would have, like {@code "png"}. */
+  @NonNull public String getFileExtension() {
+    return fileExtension;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Hand the buffer back for reuse. Calling this more than once has no effect. */
+  public synchronized void release() {
+    if (!released) {
+      released = true;
+      pool.put(bytes);
+    }
+  }
+}
@@ -0,0 +1,327 @@
+package com.mattprecious.telescope;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the captures saved in a folder along with their metadata, so that they can be listed and
+ * described without scanning the folder or decoding any files.
+ *
+ * <p>The catalog is an append-only text file in the folder with one tab-separated record per line,
+ * read once per process. Captures are added ({@code +}), removed ({@code -}), renamed
+ * ({@code >}) or used ({@code *}). Once most of the lines are out of date the file is rewritten
+ * with only the current ones.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ScreenshotCatalog {
+  private static final String TAG = "Telescope";
+  private static final String CATALOG_FILE = ".catalog";
+  /** Don't bother compacting catalogs smaller than this. */
+  private static final int MIN_COMPACT_LINES = 64;
+
+  private static final Map<File, ScreenshotCatalog> instances = new HashMap<>();
+
+  private final File folder;
+  private final File catalogFile;
+  /** In the order they were captured. Removed captures leave a null behind. */
+  private List<Capture> captures;
+  /** Index into {@link #captures} by file name. */
+  private Map<String, Integer> positions;
+  /** When each capture that has been used since it was captured was last used, by file name. */
+  private Map<String, Long> uses;
+  private int lines;
+
+  private ScreenshotCatalog(File folder) {
+    this.folder = folder;
+    this.catalogFile = new File(folder, CATALOG_FILE);
+  }
+
+  /** The catalog of the captures in {@code folder}. */
+  static synchronized ScreenshotCatalog forFolder(File folder) {
+    ScreenshotCatalog catalog = instances.get(folder);
+    if (catalog == null) {
+      catalog = new ScreenshotCatalog(folder);
+      instances.put(folder, catalog);
+    }
+    return catalog;
+  }
+
+  /**
+   * Record a capture that was just saved as {@code file}.
+   *
+   * @param size The size of the file, or -1 if it is not known yet.
+   * @param hash The hash of the pixels, or null if it was not computed.
+   */
+  synchronized void add(File file, long size, int width, int height, ScreenshotMode mode,
+      String hash) {
+    load();
+    Capture capture = new Capture(file, size, width, height, System.currentTimeMillis(), mode,
+        hash);
+    put(capture);
+    append(record(capture));
+  }
+
+  /** Record that the capture saved as {@code from} was rewritten as {@code to}. */
+  synchronized void rename(File from, File to, long size) {
+    load();
+    if (move(from.getName(), to.getName(), size)) {
+      append(">\t" + size + '\t' + from.getName() + '\t' + to.getName());
+      compactIfNeeded();
+    }
+  }
+
+  /** Record that {@code file} was deleted. */
+  synchronized void remove(File file) {
+    load();
+    if (forget(file.getName())) {
+      append("-\t" + file.getName());
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Record that the capture saved as {@code file} was just used.
+   *
+   * @return false if there is no such capture.
+   */
+  synchronized boolean touch(File file) {
+    load();
+    String name = file.getName();
+    if (!positions.containsKey(name)) {
+      return false;
+    }
+
+    long time = System.currentTimeMillis();
+    uses.put(name, time);
+    append(use(name, time));
+    compactIfNeeded();
+    return true;
+  }
+
+  /**
+   * Return when the capture saved as {@code file} was last used, in milliseconds since the epoch,
+   * or -1 if there is no such capture. Being captured counts as a use.
+   */
+  synchronized long lastUsed(File file) {
+    load();
+    String name = file.getName();
+    Integer position = positions.get(name);
+    if (position == null) {
+      return -1;
+    }
+
+    Long time = uses.get(name);
+    return time != null ? time : captures.get(position).getTimestamp();
+  }
+
+  /** Return the capture saved as {@code file}, or null if there is none. */
+  synchronized Capture find(File file) {
+    load();
+    Integer position = positions.get(file.getName());
+    return position == null ? null : captures.get(position);
+  }
+
+  /** Return up to {@code limit} of the most recent captures, newest first. */
+  synchronized List<Capture> recent(int limit) {
+    load();
+    List<Capture> recent = new ArrayList<>(Math.min(limit, positions.size()));
+    boolean removed = false;
+    for (int i = captures.size() - 1; i >= 0 && recent.size() < limit; i--) {
+      Capture capture = captures.get(i);
+      if (capture == null) {
+        continue;
+      }
+
+      File file = capture.getFile();
+      // A delta storage screenshot is only a manifest until it has been built.
+      if (file.exists() || TileStore.manifestFile(file).exists()) {
+        recent.add(capture);
+      } else {
+        // Deleted behind our back, e.g. by cleaning up.
+        forget(file.getName());
+        append("-\t" + file.getName());
+        removed = true;
+      }
+    }
+
+    if (removed) {
+      compactIfNeeded();
+    }
+    return recent;
+  }
+
+  private void put(Capture capture) {
+    String name = capture.getFile().getName();
+    Integer position = positions.get(name);
+    if (position != null) {
+      captures.set(position, null);
+    }
+    uses.remove(name);
+    positions.put(name, captures.size());
+    captures.add(capture);
+  }
+
+  private boolean forget(String name) {
+    Integer position = positions.remove(name);
+    if (position == null) {
+      return false;
+    }
+
+    captures.set(position, null);
+    uses.remove(name);
+    return true;
+  }
+
+  private boolean move(String from, String to, long size) {
+    Integer position = positions.remove(from);
+    if (position == null) {
+      return false;
+    }
+
+    Capture capture = captures.get(position);
+    captures.set(position, new Capture(new File(folder, to), size, capture.getWidth(),
+        capture.getHeight(), capture.getTimestamp(), capture.getMode(), capture.getHash()));
+    positions.put(to, position);
+    Long time = uses.remove(from);
+    if (time != null) {
+      uses.put(to, time);
+    }
+    return true;
+  }
+
+  private static String record(Capture capture) {
+    String hash = capture.getHash();
+    return "+\t" + capture.getSize()
+        + '\t' + capture.getWidth()
+        + '\t' + capture.getHeight()
+        + '\t' + capture.getTimestamp()
+        + '\t' + capture.getMode().name()
+        + '\t' + (hash != null ? hash : "-")
+        + '\t' + capture.getFile().getName();
+  }
+
+  private static String use(String name, long time) {
+    return "*\t" + time + '\t' + name;
+  }
+
+  private void append(String line) {
+    try {
+      Writer writer = new FileWriter(catalogFile, true);
+      try {
+        writer.write(line + '\n');
+      } finally {
+        writer.close();
+      }
+      lines++;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to update capture catalog.", e);
+    }
+  }
+
+  private void compactIfNeeded() {
+    if (lines < MIN_COMPACT_LINES || lines <= 2 * (positions.size() + uses.size())) {
+      return;
+    }
+
+    List<Capture> live = new ArrayList<>(positions.size());
+    for (Capture capture : captures) {
+      if (capture != null) {
+        live.add(capture);
+      }
+    }
+    Map<String, Long> liveUses = uses;
+
+    File temp = ScreenshotFiles.tempFile(catalogFile);
+    try {
+      Writer writer = new FileWriter(temp);
+      try {
+        for (Capture capture : live) {
+          writer.write(record(capture) + '\n');
+        }
+        for (Map.Entry<String, Long> entry : liveUses.entrySet()) {
+          writer.write(use(entry.getKey(), entry.getValue()) + '\n');
+        }
+      } finally {
+        writer.close();
+      }
+      ScreenshotFiles.commit(temp, catalogFile);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to compact capture catalog.", e);
+      temp.delete();
+      return;
+    }
+
+    captures = new ArrayList<>();
+    positions = new HashMap<>();
+    uses = new HashMap<>();
+    for (Capture capture : live) {
+      put(capture);
+    }
+    uses.putAll(liveUses);
+    lines = live.size() + liveUses.size();
+  }
+
+  private void load() {
+    if (captures != null) {
+      if (lines == 0 || catalogFile.exists()) {
+        return;
+      }
+      // The folder was cleaned up.
+    }
+
+    captures = new ArrayList<>();
+    positions = new HashMap<>();
+    uses = new HashMap<>();
+    lines = 0;
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(catalogFile));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines++;
+          try {
+            replay(line.split("\t"));
+          } catch (IllegalArgumentException e) {
+            // A torn write. NumberFormatException is an IllegalArgumentException too.
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (FileNotFoundException ignored) {
+      // Nothing captured yet.
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read capture catalog.", e);
+    }
+
+    compactIfNeeded();
+  }
+
+  private void replay(String[] fields) {
+    if ("+".equals(fields[0]) && fields.length == 8) {
+      String hash = "-".equals(fields[6]) ? null : fields[6];
+      put(new Capture(new File(folder, fields[7]), Long.parseLong(fields[1]),
+          Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]),
+          ScreenshotMode.valueOf(fields[5]), hash));
+    } else if ("-".equals(fields[0]) && fields.length == 2) {
+      forget(fields[1]);
+    } else if (">".equals(fields[0]) && fields.length == 4) {
+      move(fields[2], fields[3], Long.parseLong(fields[1]));
+    } else if ("*".equals(fields[0]) && fields.length == 3) {
+      if (positions.containsKey(fields[2])) {
+        uses.put(fields[2], Long.parseLong(fields[1]));
+      }
+    }
+  }
+}
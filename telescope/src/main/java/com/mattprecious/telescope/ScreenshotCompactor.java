@@ -0,0 +1,98 @@
+package com.mattprecious.telescope;
+
+import android.os.Handler;
+import android.util.Log;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Rewrites QOI screenshots in a folder as compact PNGs, one file per message on a background
+ * handler so that captures sharing the handler are never held up for long.
+ *
+ * <p>Each PNG is written to a temporary file and renamed into place, then the QOI file is deleted.
+ * {@link TelescopeFileProvider} serves the PNG for the QOI file's content URI, so URIs that were
+ * already handed out keep working. PNGs that another app has open are left alone until they are
+ * closed.
+ */
+final class ScreenshotCompactor implements Runnable {
+  private static final String TAG = "Telescope";
+  /** Files younger than this may still be being written. */
+  private static final long MIN_AGE_MS = 2000;
+
+  private final File folder;
+  private final Handler handler;
+  private final Set<File> failed = new HashSet<>(); // Only accessed on the handler.
+
+  ScreenshotCompactor(File folder, Handler handler) {
+    this.folder = folder;
+    this.handler = handler;
+  }
+
+  /** Run soon, unless already scheduled. */
+  void schedule() {
+    handler.removeCallbacks(this);
+    handler.post(this);
+  }
+
+  @Override public void run() {
+    File[] files = folder.listFiles(new FileFilter() {
+      @Override public boolean accept(File file) {
+        return QoiCodec.isQoi(file) && !failed.contains(file);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    File next = null;
+    boolean more = false;
+    boolean tooNew = false;
+    for (File file : files) {
+      if (now - file.lastModified() < MIN_AGE_MS) {
+        tooNew = true;
+      } else if (OpenFiles.isOpen(QoiCodec.pngFile(file))) {
+        // Try again the next time we are scheduled.
+      } else if (next == null) {
+        next = file;
+      } else {
+        more = true;
+      }
+    }
+
+    if (next != null) {
+      compact(next);
+    }
+    if (more) {
+      schedule();
+    } else if (tooNew) {
+      handler.removeCallbacks(this);
+      handler.postDelayed(this, MIN_AGE_MS);
+    }
+  }
+
+  private void compact(File qoi) {
+    File png = QoiCodec.pngFile(qoi);
+    // The provider may be converting the same file to serve it.
+    synchronized (QoiCodec.class) {
+      if (!qoi.exists()) {
+        return;
+      }
+
+      try {
+        QoiCodec.toPng(qoi, png, Deflater.BEST_COMPRESSION, true);
+        // Catalog the PNG before the QOI goes, so the capture is never missing from the catalog.
+        ScreenshotCatalog.forFolder(folder).rename(qoi, png, png.length());
+        qoi.delete();
+        ScreenshotIndex.forFolder(folder).remove(qoi);
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to compact " + qoi, e);
+        failed.add(qoi);
+      }
+    }
+  }
+}
@@ -0,0 +1,317 @@
+package com.mattprecious.telescope;
+
+import android.graphics.Bitmap;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.KITKAT;
+import static com.mattprecious.telescope.Preconditions.checkNotNull;
+
+/**
+ * Encodes screenshots before they are saved. Set with
+ * {@link TelescopeLayout#setScreenshotEncoder(ScreenshotEncoder)}. Default is {@link #png()}.
+ *
+ * <p>Lossy formats are much smaller and faster to write, at the cost of some detail.
+ */
+public abstract class ScreenshotEncoder {
+  /** Lossless PNG. */
+  public static ScreenshotEncoder png() {
+    return new PngEncoder();
+  }
+
+  /**
+   * Lossless PNG, filtered and compressed on a shared pool with one thread per processor. Usually
+   * much faster than {@link #png()} on multi-core devices, for slightly larger files.
+   *
+   * <p>Stitching the stripes together needs API 19+. Earlier platforms get {@link #png()}.
+   */
+  public static ScreenshotEncoder parallelPng() {
+    if (SDK_INT < KITKAT) {
+      return png();
+    }
+    return parallelPng(ParallelPngWriter.defaultExecutor());
+  }
+
+  /**
+   * Lossless PNG, filtered and compressed in stripes on {@code executor}.
+   *
+   * <p>Stitching the stripes together needs API 19+. Earlier platforms get {@link #png()}.
+   */
+  public static ScreenshotEncoder parallelPng(@NonNull Executor executor) {
+    checkNotNull(executor, "executor == null");
+    if (SDK_INT < KITKAT) {
+      return png();
+    }
+    return new ParallelPngEncoder(new ParallelPngWriter(executor, Deflater.DEFAULT_COMPRESSION));
+  }
+
+  /**
+   * Lossless PNG, written with a color palette when the screenshot has at most 256 distinct colors,
+   * as most UI screenshots do. Those files are several times smaller. Other screenshots are
+   * written as with {@link #png()}.
+   */
+  public static ScreenshotEncoder palettePng() {
+    return new PalettePngEncoder();
+  }
+
+  /**
+   * Lossless <a href="https://qoiformat.org">QOI</a>, many times faster to write than PNG. Since
+   * few apps can open QOI, screenshots opened through {@link TelescopeFileProvider} are converted
+   * to and served as PNG.
+   */
+  public static ScreenshotEncoder qoi() {
+    return new QoiEncoder();
+  }
+
+  /** JPEG at the given quality. Transparency is not preserved. */
+  public static ScreenshotEncoder jpeg(@IntRange(from = 0, to = 100) int quality) {
+    checkQuality(quality);
+    return new CompressFormatEncoder(Bitmap.CompressFormat.JPEG, quality, "jpg");
+  }
+
+  /** Lossy WebP at the given quality. On API 29+, a quality of 100 is lossless. */
+  public static ScreenshotEncoder webp(@IntRange(from = 0, to = 100) int quality) {
+    checkQuality(quality);
+    return new CompressFormatEncoder(Bitmap.CompressFormat.WEBP, quality, "webp");
+  }
+
+  /**
+   * Lossless WebP. Only lossless on API 29+. Earlier platforms write lossy WebP at the highest
+   * quality.
+   */
+  public static ScreenshotEncoder webpLossless() {
+    return new CompressFormatEncoder(Bitmap.CompressFormat.WEBP, 100, "webp");
+  }
+
+  /** The extension, without a leading dot, of files written by this encoder. */
+  @NonNull public abstract String getFileExtension();
+
+  /** Encode {@code screenshot} to {@code out}. Called on a background thread. */
+  @WorkerThread
+  public abstract void encode(@NonNull Bitmap screenshot, @NonNull OutputStream out)
+      throws IOException;
+
+  /**
+   * Whether this encoder supports {@link #encode(ByteBuffer, int, int, int, int, OutputStream)}.
+   * The default implementation returns false.
+   */
+  public boolean canEncodePixels() {
+    return false;
+  }
+
+  /**
+   * Encode raw pixels to {@code out}, without creating a {@link Bitmap}. Called on a background
+   * thread, and only if {@link #canEncodePixels()} returns true.
+   *
+   * <p>The pixels are laid out like an {@link android.graphics.PixelFormat#RGBA_8888 RGBA_8888}
+   * {@link android.media.Image.Plane}: pixel {@code (x, y)} starts at byte
+   * {@code y * rowStride + x * pixelStride} of {@code pixels}, relative to its position. They
+   * come from the screen, so are opaque and the alpha byte is ignored.
+   */
+  @WorkerThread
+  public void encode(@NonNull ByteBuffer pixels, int width, int height, int rowStride,
+      int pixelStride, @NonNull OutputStream out) throws IOException {
+    throw new UnsupportedOperationException(getClass().getName() + " cannot encode raw pixels.");
+  }
+
+  private static void checkQuality(int quality) {
+    if (quality < 0 || quality > 100) {
+      throw new IllegalArgumentException("quality must be in [0, 100]");
+    }
+  }
+
+  private static final class CompressFormatEncoder extends ScreenshotEncoder {
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+    private final String extension;
+
+    CompressFormatEncoder(Bitmap.CompressFormat format, int quality, String extension) {
+      this.format = format;
+      this.quality = quality;
+      this.extension = extension;
+    }
+
+    @Override public String getFileExtension() {
+      return extension;
+    }
+
+    @Override public void encode(Bitmap screenshot, OutputStream out) throws IOException {
+      if (!screenshot.compress(format, quality, out)) {
+        throw new IOException("Failed to encode screenshot as " + format);
+      }
+    }
+  }
+
+  private static final class PngEncoder extends ScreenshotEncoder {
+    private static final int ROWS_PER_BATCH = 32;
+
+    @Override public String getFileExtension() {
+      return "png";
+    }
+
+    @Override public void encode(Bitmap screenshot, OutputStream out) throws IOException {
+      if (!screenshot.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+        throw new IOException("Failed to encode screenshot as PNG");
+      }
+    }
+
+    @Override public boolean canEncodePixels() {
+      return true;
+    }
+
+    @Override public void encode(ByteBuffer pixels, int width, int height, int rowStride,
+        int pixelStride, OutputStream out) throws IOException {
+      writeOpaquePng(out, width, height,
+          new PixelRowSource(pixels, width, rowStride, pixelStride));
+    }
+
+    static void writeOpaquePng(OutputStream out, int width, int height,
+        ParallelPngWriter.RowSource source) throws IOException {
+      PngWriter writer = new PngWriter(out, width, height, false, Deflater.DEFAULT_COMPRESSION);
+      int[] rows = new int[width * ROWS_PER_BATCH];
+      for (int y = 0; y < height; y += ROWS_PER_BATCH) {
+        int count = Math.min(ROWS_PER_BATCH, height - y);
+        source.getRows(rows, y, count);
+        writer.writeRows(rows, 0, width, count);
+      }
+      writer.finish();
+    }
+  }
+
+  private static final class PalettePngEncoder extends ScreenshotEncoder {
+    private final PngEncoder fallback = new PngEncoder();
+
+    @Override public String getFileExtension() {
+      return "png";
+    }
+
+    @Override public void encode(Bitmap screenshot, OutputStream out) throws IOException {
+      int width = screenshot.getWidth();
+      int height = screenshot.getHeight();
+      BitmapRowSource source = new BitmapRowSource(screenshot);
+      int[] palette = PalettePngWriter.findPalette(width, height, source);
+      if (palette != null) {
+        PalettePngWriter.write(out, width, height, palette, source,
+            Deflater.DEFAULT_COMPRESSION);
+      } else {
+        fallback.encode(screenshot, out);
+      }
+    }
+
+    @Override public boolean canEncodePixels() {
+      return true;
+    }
+
+    @Override public void encode(ByteBuffer pixels, int width, int height, int rowStride,
+        int pixelStride, OutputStream out) throws IOException {
+      PixelRowSource source = new PixelRowSource(pixels, width, rowStride, pixelStride);
+      int[] palette = PalettePngWriter.findPalette(width, height, source);
+      if (palette != null) {
+        PalettePngWriter.write(out, width, height, palette, source,
+            Deflater.DEFAULT_COMPRESSION);
+      } else {
+        PngEncoder.writeOpaquePng(out, width, height, source);
+      }
+    }
+  }
+
+  private static final class ParallelPngEncoder extends ScreenshotEncoder {
+    private final ParallelPngWriter writer;
+
+    ParallelPngEncoder(ParallelPngWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override public String getFileExtension() {
+      return "png";
+    }
+
+    @Override public void encode(Bitmap screenshot, OutputStream out) throws IOException {
+      writer.write(out, screenshot.getWidth(), screenshot.getHeight(), screenshot.hasAlpha(),
+          new BitmapRowSource(screenshot));
+    }
+
+    @Override public boolean canEncodePixels() {
+      return true;
+    }
+
+    @Override public void encode(ByteBuffer pixels, int width, int height, int rowStride,
+        int pixelStride, OutputStream out) throws IOException {
+      writer.write(out, width, height, false,
+          new PixelRowSource(pixels, width, rowStride, pixelStride));
+    }
+  }
+
+  private static final class QoiEncoder extends ScreenshotEncoder {
+    @Override public String getFileExtension() {
+      return QoiCodec.EXTENSION;
+    }
+
+    @Override public void encode(Bitmap screenshot, OutputStream out) throws IOException {
+      QoiCodec.encode(out, screenshot.getWidth(), screenshot.getHeight(), screenshot.hasAlpha(),
+          new BitmapRowSource(screenshot));
+    }
+
+    @Override public boolean canEncodePixels() {
+      return true;
+    }
+
+    @Override public void encode(ByteBuffer pixels, int width, int height, int rowStride,
+        int pixelStride, OutputStream out) throws IOException {
+      QoiCodec.encode(out, width, height, false,
+          new PixelRowSource(pixels, width, rowStride, pixelStride));
+    }
+  }
+
+  static final class BitmapRowSource implements ParallelPngWriter.RowSource {
+    private final Bitmap bitmap;
+
+    BitmapRowSource(Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
+
+    @Override public void getRows(int[] pixels, int y, int rows) {
+      int width = bitmap.getWidth();
+      bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+    }
+  }
+
+  /** Reads opaque ARGB rows out of RGBA pixels laid out like an image plane. */
+  static final class PixelRowSource implements ParallelPngWriter.RowSource {
+    private final ByteBuffer pixels;
+    private final int width;
+    private final int rowStride;
+    private final int pixelStride;
+
+    PixelRowSource(ByteBuffer pixels, int width, int rowStride, int pixelStride) {
+      this.pixels = pixels.slice();
+      this.width = width;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+    }
+
+    @Override public void getRows(int[] argb, int y, int rows) {
+      // Each caller gets its own position, so rows can be read from several threads at once.
+      ByteBuffer source = pixels.duplicate();
+      byte[] row = new byte[(width - 1) * pixelStride + 4];
+      int i = 0;
+      for (int r = 0; r < rows; r++) {
+        source.position((y + r) * rowStride);
+        source.get(row);
+        for (int x = 0, offset = 0; x < width; x++, offset += pixelStride) {
+          argb[i++] = 0xff000000
+              | (row[offset] & 0xff) << 16
+              | (row[offset + 1] & 0xff) << 8
+              | (row[offset + 2] & 0xff);
+        }
+      }
+    }
+  }
+}
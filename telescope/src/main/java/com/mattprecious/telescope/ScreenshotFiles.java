@@ -0,0 +1,61 @@
+package com.mattprecious.telescope;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Names and atomically writes capture files.
+ *
+ * <p>Names are the capture time to the millisecond. Each name handed out is at least a millisecond
+ * after the last, so captures in the same instant, from any thread or layout, never share one.
+ * Captures are written to a {@link #tempFile(File) temporary file} and then
+ * {@link #commit(File, File) renamed} into place, so a partly written capture is never seen under
+ * its real name.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ScreenshotFiles {
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static long lastTime;
+
+  /** A new file in {@code folder} with {@code extension} that no other capture is using. */
+  static synchronized File newFile(File folder, String extension) {
+    long time = Math.max(System.currentTimeMillis(), lastTime + 1);
+    File file;
+    // Skip names left over from a previous process, e.g. if the clock has gone back.
+    while ((file = new File(folder, name(time) + '.' + extension)).exists()
+        || TileStore.manifestFile(file).exists()) {
+      time++;
+    }
+
+    lastTime = time;
+    return file;
+  }
+
+  /** The temporary file to write {@code file} to before committing it. */
+  static File tempFile(File file) {
+    return new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+  }
+
+  /** Move the finished {@code temp} into place as {@code file}. */
+  static void commit(File temp, File file) throws IOException {
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Unable to write " + file);
+    }
+  }
+
+  private static String name(long time) {
+    // SimpleDateFormat is not thread-safe, so each name gets its own.
+    return new SimpleDateFormat("'telescope'-yyyy-MM-dd-HHmmss-SSS", Locale.US)
+        .format(new Date(time));
+  }
+
+  private ScreenshotFiles() {
+    throw new AssertionError("No instances.");
+  }
+}
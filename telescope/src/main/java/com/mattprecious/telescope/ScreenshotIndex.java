@@ -0,0 +1,212 @@
+package com.mattprecious.telescope;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the hash of a screenshot's pixels to the file it was saved as, so that capturing the same
+ * pixels again can reuse that file instead of encoding and writing another.
+ *
+ * <p>The index is an append-only text file in the screenshot folder, read once per process, with
+ * one {@code hash name} line per entry. Deleted files are recorded as {@code - name}, and entries
+ * whose file was deleted some other way are dropped when they are next looked up. Once most of the
+ * lines are out of date the file is rewritten with only the current entries.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ScreenshotIndex {
+  private static final String TAG = "Telescope";
+  private static final String INDEX_FILE = ".index";
+  private static final int ROWS_PER_BATCH = 32;
+  private static final String REMOVED = "-";
+  /** Don't bother compacting indexes smaller than this. */
+  private static final int MIN_COMPACT_LINES = 64;
+
+  private static final Map<File, ScreenshotIndex> instances = new HashMap<>();
+
+  private final File folder;
+  private final File indexFile;
+  private Map<String, String> files;
+  private int lines;
+
+  private ScreenshotIndex(File folder) {
+    this.folder = folder;
+    this.indexFile = new File(folder, INDEX_FILE);
+  }
+
+  /** The index of the screenshots in {@code folder}. */
+  static synchronized ScreenshotIndex forFolder(File folder) {
+    ScreenshotIndex index = instances.get(folder);
+    if (index == null) {
+      index = new ScreenshotIndex(folder);
+      instances.put(folder, index);
+    }
+    return index;
+  }
+
+  /**
+   * Hash an image's pixels along with the file extension it will be saved with, since the same
+   * pixels saved in another format are a different file.
+   */
+  static String hash(int width, int height, ParallelPngWriter.RowSource source,
+      String extension) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+
+    ByteBuffer bytes = ByteBuffer.allocate(width * ROWS_PER_BATCH * 4);
+    bytes.putInt(width).putInt(height);
+    digest.update(bytes.array(), 0, bytes.position());
+    digest.update(extension.getBytes("UTF-8"));
+
+    int[] pixels = new int[width * ROWS_PER_BATCH];
+    for (int y = 0; y < height; y += ROWS_PER_BATCH) {
+      int rows = Math.min(ROWS_PER_BATCH, height - y);
+      source.getRows(pixels, y, rows);
+      bytes.clear();
+      bytes.asIntBuffer().put(pixels, 0, width * rows);
+      digest.update(bytes.array(), 0, width * rows * 4);
+    }
+
+    byte[] hash = digest.digest();
+    StringBuilder builder = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      builder.append(Character.forDigit((b >>> 4) & 0xf, 16));
+      builder.append(Character.forDigit(b & 0xf, 16));
+    }
+    return builder.toString();
+  }
+
+  /** Return the screenshot saved with {@code hash}, or null if there is none. */
+  synchronized File find(String hash) {
+    load();
+    String name = files.get(hash);
+    if (name == null) {
+      return null;
+    }
+
+    File file = new File(folder, name);
+    // A delta storage screenshot is only a manifest until it has been built.
+    if (file.exists() || TileStore.manifestFile(file).exists()) {
+      ScreenshotStore.touch(file);
+      return file;
+    }
+
+    files.remove(hash);
+    append(REMOVED + ' ' + name);
+    compactIfNeeded();
+    return null;
+  }
+
+  /** Record that the screenshot with {@code hash} was saved as {@code file}. */
+  synchronized void add(String hash, File file) {
+    load();
+    files.put(hash, file.getName());
+    append(hash + ' ' + file.getName());
+  }
+
+  /** Record that {@code file} was deleted. */
+  synchronized void remove(File file) {
+    load();
+    if (forget(file.getName())) {
+      append(REMOVED + ' ' + file.getName());
+      compactIfNeeded();
+    }
+  }
+
+  private boolean forget(String name) {
+    return files.values().removeAll(Collections.singleton(name));
+  }
+
+  private void append(String line) {
+    try {
+      Writer writer = new FileWriter(indexFile, true);
+      try {
+        writer.write(line + '\n');
+      } finally {
+        writer.close();
+      }
+      lines++;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to update screenshot index.", e);
+    }
+  }
+
+  private void compactIfNeeded() {
+    if (lines < MIN_COMPACT_LINES || lines <= 2 * files.size()) {
+      return;
+    }
+
+    File temp = new File(folder, INDEX_FILE + ".tmp");
+    try {
+      Writer writer = new FileWriter(temp);
+      try {
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+          writer.write(entry.getKey() + ' ' + entry.getValue() + '\n');
+        }
+      } finally {
+        writer.close();
+      }
+      if (!temp.renameTo(indexFile)) {
+        throw new IOException("Unable to replace " + indexFile);
+      }
+      lines = files.size();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to compact screenshot index.", e);
+      temp.delete();
+    }
+  }
+
+  private void load() {
+    if (files != null) {
+      return;
+    }
+
+    files = new HashMap<>();
+    lines = 0;
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines++;
+          int space = line.indexOf(' ');
+          if (space <= 0) {
+            continue; // A torn write.
+          }
+
+          String key = line.substring(0, space);
+          String name = line.substring(space + 1);
+          if (REMOVED.equals(key)) {
+            forget(name);
+          } else {
+            files.put(key, name);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (FileNotFoundException ignored) {
+      // Nothing indexed yet.
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read screenshot index.", e);
+    }
+
+    compactIfNeeded();
+  }
+}
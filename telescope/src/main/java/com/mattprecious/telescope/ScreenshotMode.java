@@ -9,7 +9,8 @@ public enum ScreenshotMode {
    * System screenshots are only available on API 21+. Telescope will automatically fall back to
    * {@link #CANVAS} mode on earlier platforms or if screen recording permission was not granted.
    * {@link #CANVAS} will also be used if Telescope has been configured to screenshot children only
-   * or if a different target view has been specified.
+   * or if a different target view has been specified, unless
+   * {@link TelescopeLayout#setScreenshotTargetRegion(boolean) region screenshots} are enabled.
    *
    * <p>
    * <i>
@@ -32,4 +33,70 @@ public enum ScreenshotMode {
   CANVAS,
   /** Do not save a screenshot. */
   NONE,
+  /**
+   * Copies the hardware-rendered surface of the window into a bitmap asynchronously. Unlike
+   * {@link #CANVAS}, the view hierarchy is not re-rendered in software on the main thread. System
+   * bars and other windows are not included.
+   *
+   * <p>
+   * Pixel copy screenshots are only available on API 24+. Telescope will automatically fall back to
+   * {@link #CANVAS} mode on earlier platforms or if the window could not be copied. {@link #CANVAS}
+   * will also be used if Telescope has been configured to screenshot children only or if a
+   * different target view has been specified, unless
+   * {@link TelescopeLayout#setScreenshotTargetRegion(boolean) region screenshots} are enabled on
+   * API 26+.
+   */
+  PIXEL_COPY,
+  /**
+   * Records a video of the screen instead of taking a screenshot. The first capture starts
+   * recording and the next one stops it, after which the MP4 file is passed to
+   * {@link Lens#onCapture(java.io.File)}. Recording also stops after one minute.
+   * {@link Lens#onCapture(android.graphics.Bitmap, BitmapProcessorListener)} is not called.
+   *
+   * <p>
+   * The screen is rendered directly into a hardware video encoder using the same screen capture
+   * permission as {@link #SYSTEM}. Video is only available on API 21+. Telescope will take a
+   * {@link #CANVAS} screenshot instead on earlier platforms or if the window is secure.
+   */
+  VIDEO,
+  /**
+   * Like {@link #CANVAS}, but also draws the app's other windows such as dialogs, popups and
+   * toasts on top of the target in a single pass. System bars are not included.
+   *
+   * <p>
+   * Telescope will fall back to {@link #CANVAS} mode if Telescope has been configured to
+   * screenshot children only or if a different target view has been specified.
+   *
+   * <p>
+   * There is no public API for listing an app's windows, so they are read from a hidden framework
+   * field. Newer Android releases restrict access to hidden APIs. If the windows can not be found,
+   * only the target's window is drawn and a warning is logged.
+   *
+   * <p>
+   * <i>
+   * Requires the
+   * {@link android.Manifest.permission#WRITE_EXTERNAL_STORAGE WRITE_EXTERNAL_STORAGE} permission
+   * on API 18 and below.
+   * </i>
+   */
+  WINDOWS,
+  /**
+   * Captures the full content of a vertically scrolling target view, such as a {@code ScrollView}
+   * or {@code RecyclerView}, by scrolling through it page by page. Pages are streamed into a PNG
+   * file as they are drawn so the whole image is never held in memory, which means
+   * {@link Lens#onCapture(android.graphics.Bitmap, BitmapProcessorListener)} is not called. Very
+   * long content is cut off after 50 pages.
+   *
+   * <p>
+   * Set the scrolling view with {@link TelescopeLayout#setScreenshotTarget(android.view.View)}.
+   * Telescope will fall back to {@link #CANVAS} mode if the target can't scroll.
+   *
+   * <p>
+   * <i>
+   * Requires the
+   * {@link android.Manifest.permission#WRITE_EXTERNAL_STORAGE WRITE_EXTERNAL_STORAGE} permission
+   * on API 18 and below.
+   * </i>
+   */
+  SCROLLING,
 }
@@ -0,0 +1,147 @@
+package com.mattprecious.telescope;
+
+import android.os.Handler;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the screenshot folder within a size and file count quota by deleting the least recently
+ * used screenshots. Eviction runs on a background handler a small batch at a time.
+ *
+ * <p>Use order is kept in the {@link ScreenshotCatalog}, which {@link #touch(File)} updates
+ * whenever a screenshot is reused or opened, so it survives the process. Files missing from the
+ * catalog fall back to their modification time. Screenshots that another app has open or has been
+ * handed a content URI for are never evicted, and neither is the most recently used one.
+ *
+ * <p>The tiles of delta storage count towards the size quota too. Tiles are deleted along with the
+ * last screenshot that uses them, or once that screenshot has been built as a PNG.
+ */
+final class ScreenshotStore implements Runnable {
+  private static final int DELETES_PER_BATCH = 16;
+
+  private static final FileFilter SCREENSHOTS = new FileFilter() {
+    @Override public boolean accept(File file) {
+      String name = file.getName();
+      return file.isFile() && !name.startsWith(".") && !name.endsWith(".tmp");
+    }
+  };
+
+  private final File folder;
+  private final Handler handler;
+  private volatile long maxBytes;
+  private volatile int maxFiles;
+
+  ScreenshotStore(File folder, Handler handler) {
+    this.folder = folder;
+    this.handler = handler;
+  }
+
+  /** Mark {@code file} as just used. */
+  static void touch(File file) {
+    File captured = capturedFile(file);
+    if (!ScreenshotCatalog.forFolder(captured.getParentFile()).touch(captured)) {
+      file.setLastModified(System.currentTimeMillis());
+    }
+  }
+
+  /** Set the quota. 0 leaves that dimension unbounded. */
+  void setQuota(long maxBytes, int maxFiles) {
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+  }
+
+  /** Evict down to the quota soon, unless already scheduled. */
+  void schedule() {
+    handler.removeCallbacks(this);
+    handler.post(this);
+  }
+
+  @Override public void run() {
+    long maxBytes = this.maxBytes;
+    int maxFiles = this.maxFiles;
+    if (maxBytes == 0 && maxFiles == 0) {
+      return;
+    }
+
+    File[] files = folder.listFiles(SCREENSHOTS);
+    if (files == null) {
+      return;
+    }
+
+    ScreenshotCatalog catalog = ScreenshotCatalog.forFolder(folder);
+    ScreenshotIndex index = ScreenshotIndex.forFolder(folder);
+    long bytes = 0;
+    final Map<File, Long> lastUsed = new HashMap<>();
+    for (File file : files) {
+      bytes += file.length();
+      long time = catalog.lastUsed(capturedFile(file));
+      lastUsed.put(file, time != -1 ? time : file.lastModified());
+    }
+    int count = files.length;
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override public int compare(File a, File b) {
+        long lhs = lastUsed.get(a);
+        long rhs = lastUsed.get(b);
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+      }
+    });
+
+    // Keep screenshots from being saved or built while their tiles are counted and deleted.
+    synchronized (TileStore.class) {
+      TileStore.Tiles tiles = new TileStore.Tiles(folder);
+      int deleted = 0;
+      // The most recently used screenshot always stays.
+      for (int i = 0; i < files.length - 1; i++) {
+        if (!overQuota(bytes + tiles.bytes(), count, maxBytes, maxFiles)) {
+          break;
+        }
+
+        File file = files[i];
+        if (isInUse(file)) {
+          continue;
+        }
+
+        if (deleted == DELETES_PER_BATCH) {
+          // Let anything else waiting on the handler run first.
+          schedule();
+          return;
+        }
+
+        long length = file.length();
+        boolean manifest = file.getName().endsWith(TileStore.MANIFEST_SUFFIX);
+        if (manifest ? tiles.delete(file) : file.delete()) {
+          catalog.remove(capturedFile(file));
+          index.remove(capturedFile(file));
+          bytes -= length;
+          count--;
+          deleted++;
+        }
+      }
+    }
+  }
+
+  /** Whether another app may be reading the screenshot stored as {@code file}. */
+  static boolean isInUse(File file) {
+    return OpenFiles.isInUse(TelescopeFileProvider.served(capturedFile(file)));
+  }
+
+  /** The capture that {@code file} stores. */
+  private static File capturedFile(File file) {
+    String name = file.getName();
+    if (name.endsWith(TileStore.MANIFEST_SUFFIX)) {
+      // URIs are handed out for the PNG that the manifest builds.
+      return new File(file.getParentFile(),
+          name.substring(0, name.length() - TileStore.MANIFEST_SUFFIX.length()));
+    }
+    return file;
+  }
+
+  private static boolean overQuota(long bytes, int count, long maxBytes, int maxFiles) {
+    return (maxBytes != 0 && bytes > maxBytes) || (maxFiles != 0 && count > maxFiles);
+  }
+}
@@ -0,0 +1,306 @@
+package com.mattprecious.telescope;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+
+/**
+ * Captures the full content of a vertically scrolling view by paging through it and streaming
+ * each page into a PNG file, so that only a single page is ever held in memory. The file is built
+ * under a temporary name and only appears once it is complete.
+ *
+ * <p>Pages are drawn on the main thread and encoded on the background handler, one at a time. The
+ * target's scroll position is restored once done.
+ */
+final class ScrollingCapture {
+  private static final String TAG = "Telescope";
+  /** Stops runaway captures of endless lists. */
+  private static final int MAX_PAGES = 50;
+  private static final int ROWS_PER_BATCH = 32;
+
+  /** Callback for {@link #start}. */
+  interface Callback {
+    /**
+     * Called on the main thread once the capture has finished.
+     *
+     * @param file The capture, or null if it could not be saved.
+     */
+    void onCaptured(File file);
+  }
+
+  private final View target;
+  private final float scale;
+  private final BitmapPool bitmapPool;
+  private final Handler mainHandler;
+  private final Handler backgroundHandler;
+  private final File file;
+  private final File temp;
+  private final Callback callback;
+  private final Method scrollOffsetMethod; // Null to use getScrollY().
+
+  private int startOffset;
+  private int pages;
+  private int width;
+  private int writtenRows;
+  private Bitmap page;
+  private int[] pixels;
+  private OutputStream out;
+  private PngWriter writer;
+
+  ScrollingCapture(View target, float scale, BitmapPool bitmapPool, Handler mainHandler,
+      Handler backgroundHandler, File file, Callback callback) {
+    this.target = target;
+    this.scale = scale;
+    this.bitmapPool = bitmapPool;
+    this.mainHandler = mainHandler;
+    this.backgroundHandler = backgroundHandler;
+    this.file = file;
+    this.temp = ScreenshotFiles.tempFile(file);
+    this.callback = callback;
+    this.scrollOffsetMethod = findScrollOffsetMethod(target);
+  }
+
+  /** Whether {@code view} has content to page through. */
+  static boolean canCapture(View view) {
+    return view.canScrollVertically(-1) || view.canScrollVertically(1);
+  }
+
+  /** Start capturing. Must be called on the main thread. */
+  void start() {
+    startOffset = scrollOffset();
+
+    // Scroll all the way to the top. Some views only scroll a limited distance per call.
+    target.scrollBy(0, -startOffset);
+    for (int i = 0; i < MAX_PAGES && target.canScrollVertically(-1); i++) {
+      target.scrollBy(0, -target.getHeight());
+    }
+
+    int width = Math.max(1, Math.round(target.getWidth() * scale));
+    int height = Math.max(1, Math.round(target.getHeight() * scale));
+    page = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+    pixels = new int[width * ROWS_PER_BATCH];
+
+    capturePage(0);
+  }
+
+  /** Draw the current page and encode its rows from {@code firstNewRow} down. */
+  private void capturePage(int firstNewRow) {
+    page.eraseColor(Color.TRANSPARENT);
+    Canvas canvas = new Canvas(page);
+    canvas.scale(scale, scale);
+    canvas.translate(-target.getScrollX(), -target.getScrollY());
+    target.draw(canvas);
+    pages++;
+
+    final int fromRow = firstNewRow;
+    backgroundHandler.post(new Runnable() {
+      @Override public void run() {
+        final boolean success = encodeRows(fromRow);
+        mainHandler.post(new Runnable() {
+          @Override public void run() {
+            if (success) {
+              nextPage();
+            } else {
+              finish(false);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private void nextPage() {
+    int scrolled = 0;
+    if (pages < MAX_PAGES && target.canScrollVertically(1)) {
+      scrolled = scrollDown();
+    }
+
+    if (scrolled <= 0) {
+      finish(true);
+      return;
+    }
+
+    // Only the rows that scrolled into view are new.
+    int newRows = Math.min(page.getHeight(), Math.round(scrolled * scale));
+    capturePage(page.getHeight() - newRows);
+  }
+
+  private void finish(final boolean success) {
+    // Put the target back where we found it.
+    target.scrollBy(0, startOffset - scrollOffset());
+
+    final Bitmap page = this.page;
+    this.page = null;
+
+    backgroundHandler.post(new Runnable() {
+      @Override public void run() {
+        boolean saved = success && finishFile();
+        bitmapPool.put(page);
+
+        final File result = saved ? file : null;
+        if (!saved) {
+          temp.delete();
+        }
+
+        mainHandler.post(new Runnable() {
+          @Override public void run() {
+            callback.onCaptured(result);
+          }
+        });
+      }
+    });
+  }
+
+  // Background thread.
+  private boolean encodeRows(int fromRow) {
+    try {
+      width = page.getWidth();
+      if (writer == null) {
+        file.getParentFile().mkdirs();
+        out = new FileOutputStream(temp);
+        // The height is not known yet and is patched when finished.
+        writer = new PngWriter(out, width, 1, true, Deflater.DEFAULT_COMPRESSION);
+      }
+
+      for (int y = fromRow; y < page.getHeight(); y += ROWS_PER_BATCH) {
+        int rows = Math.min(ROWS_PER_BATCH, page.getHeight() - y);
+        page.getPixels(pixels, 0, width, 0, y, width, rows);
+        writer.writeRows(pixels, 0, width, rows);
+        writtenRows += rows;
+      }
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to save scrolling screenshot.", e);
+      closeQuietly();
+      return false;
+    }
+  }
+
+  // Background thread.
+  private boolean finishFile() {
+    if (writer == null) {
+      return false;
+    }
+
+    try {
+      writer.finish();
+      out.close();
+      PngWriter.patchHeight(temp, writtenRows);
+      ScreenshotFiles.commit(temp, file);
+      ScreenshotCatalog.forFolder(file.getParentFile())
+          .add(file, file.length(), width, writtenRows, ScreenshotMode.SCROLLING, null);
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to save scrolling screenshot.", e);
+      closeQuietly();
+      return false;
+    }
+  }
+
+  private void closeQuietly() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Scroll the target down by about a page and return how many pixels its content actually moved.
+   *
+   * <p>Views like {@code ScrollView} scroll by changing {@link View#getScrollY()}. Views like
+   * {@code RecyclerView} move their children instead, and the offset their scroll bars report may
+   * be estimated from the average item height, so measure how far a child that stays on screen
+   * moved.
+   */
+  private int scrollDown() {
+    int distance = target.getHeight();
+    View anchor = null;
+    if (target instanceof ViewGroup) {
+      ViewGroup group = (ViewGroup) target;
+      for (int i = group.getChildCount() - 1; i >= 0; i--) {
+        View child = group.getChildAt(i);
+        if (child.getTop() < distance && child.getBottom() > distance) {
+          // Still partly on screen after scrolling a full page.
+          anchor = child;
+          break;
+        }
+        if (anchor == null && child.getTop() > 0 && child.getTop() < distance) {
+          // Scroll no further than this child's top so it stays on screen.
+          anchor = child;
+        }
+      }
+      if (anchor != null && anchor.getBottom() <= distance) {
+        distance = anchor.getTop();
+      }
+    }
+
+    int scrollYBefore = target.getScrollY();
+    int anchorTopBefore = anchor != null ? anchor.getTop() : 0;
+    int offsetBefore = scrollOffset();
+    target.scrollBy(0, distance);
+
+    int scrolledY = target.getScrollY() - scrollYBefore;
+    if (scrolledY != 0) {
+      return scrolledY;
+    }
+    if (anchor != null && anchor.getParent() == target) {
+      return anchorTopBefore - anchor.getTop();
+    }
+    return scrollOffset() - offsetBefore;
+  }
+
+  /**
+   * The target's vertical scroll offset, used to put it back where it was. Views like
+   * {@code RecyclerView} scroll without changing {@link View#getScrollY()}, so use the same offset
+   * their scroll bars do when possible. It may be an estimate.
+   */
+  private int scrollOffset() {
+    if (scrollOffsetMethod != null) {
+      try {
+        return (Integer) scrollOffsetMethod.invoke(target);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        Log.e(TAG, "Unable to read scroll offset.", e);
+      }
+    }
+
+    return target.getScrollY();
+  }
+
+  /** Find how to read {@code target}'s scroll offset. Returns null to use getScrollY(). */
+  private static Method findScrollOffsetMethod(View target) {
+    try {
+      // Public on views implementing the support library's ScrollingView, like RecyclerView.
+      return target.getClass().getMethod("computeVerticalScrollOffset");
+    } catch (NoSuchMethodException ignored) {
+    }
+
+    if (!(target instanceof AbsListView)) {
+      // Views like ScrollView scroll by changing getScrollY().
+      return null;
+    }
+
+    // List views scroll their children instead and only have a protected offset.
+    try {
+      Method method = View.class.getDeclaredMethod("computeVerticalScrollOffset");
+      method.setAccessible(true);
+      return method;
+    } catch (NoSuchMethodException | RuntimeException e) {
+      Log.w(TAG, "Unable to read the scroll offset of " + target + ". Using getScrollY().", e);
+      return null;
+    }
+  }
+}
@@ -1,8 +1,18 @@
 package com.mattprecious.telescope;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.KITKAT;
 
 public final class TelescopeFileProvider extends FileProvider {
   /**
@@ -10,6 +20,85 @@ public final class TelescopeFileProvider extends FileProvider {
    * screenshots.
    */
   public static Uri getUriForFile(Context context, File file) {
-    return getUriForFile(context, context.getPackageName() + ".telescope.fileprovider", file);
+    Uri uri = getUriForFile(context, context.getPackageName() + ".telescope.fileprovider", file);
+    OpenFiles.grant(served(file));
+    return uri;
+  }
+
+  @Override File servedFile(File file) {
+    return served(file);
+  }
+
+  /** QOI screenshots are served as PNG, since few apps can open them. */
+  static File served(File file) {
+    return QoiCodec.isQoi(file) ? QoiCodec.pngFile(file) : file;
+  }
+
+  /** Catalogued captures are described without building or converting them. */
+  @Override long servedLength(File file) {
+    File served = served(file);
+    Capture capture = ScreenshotCatalog.forFolder(served.getParentFile()).find(served);
+    return capture != null ? capture.getSize() : -1;
+  }
+
+  @Override void prepareFile(File file) throws FileNotFoundException {
+    try {
+      TileStore.materialize(file);
+      if (QoiCodec.isQoi(file)) {
+        convertToPng(file);
+      }
+    } catch (IOException e) {
+      FileNotFoundException notFound = new FileNotFoundException("Unable to build " + file);
+      notFound.initCause(e);
+      throw notFound;
+    }
+  }
+
+  /**
+   * Track open screenshots so they are not rewritten while being read. Before API 19 there is no
+   * way to know when a file is closed, so it is treated as open until the process ends.
+   */
+  @Override ParcelFileDescriptor open(File file, int mode) throws FileNotFoundException {
+    OpenFiles.acquire(file);
+    ScreenshotStore.touch(file);
+    if (SDK_INT < KITKAT) {
+      return super.open(file, mode);
+    }
+
+    try {
+      return openTracked(file, mode);
+    } catch (FileNotFoundException | RuntimeException e) {
+      OpenFiles.release(file);
+      throw e;
+    }
+  }
+
+  @TargetApi(KITKAT)
+  private static ParcelFileDescriptor openTracked(final File file, int mode)
+      throws FileNotFoundException {
+    try {
+      return ParcelFileDescriptor.open(file, mode, new Handler(Looper.getMainLooper()),
+          new ParcelFileDescriptor.OnCloseListener() {
+            @Override public void onClose(IOException e) {
+              OpenFiles.release(file);
+            }
+          });
+    } catch (FileNotFoundException e) {
+      throw e;
+    } catch (IOException e) {
+      FileNotFoundException notFound = new FileNotFoundException("Unable to open " + file);
+      notFound.initCause(e);
+      throw notFound;
+    }
+  }
+
+  private static void convertToPng(File qoi) throws IOException {
+    File png = QoiCodec.pngFile(qoi);
+    // The compactor may be converting the same file in the background.
+    synchronized (QoiCodec.class) {
+      if (!png.exists() && qoi.exists()) {
+        QoiCodec.toPng(qoi, png, Deflater.DEFAULT_COMPRESSION, false);
+      }
+    }
   }
 }
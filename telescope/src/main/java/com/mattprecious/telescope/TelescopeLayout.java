@@ -11,45 +11,53 @@ import android.content.IntentFilter;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PixelFormat;
-import android.hardware.display.DisplayManager;
-import android.hardware.display.VirtualDisplay;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.media.Image;
-import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Process;
 import android.os.Vibrator;
 import android.support.annotation.ColorInt;
+import android.support.annotation.FloatRange;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.MotionEvent;
-import android.view.Surface;
+import android.view.PixelCopy;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.Window;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.List;
 
 import static android.Manifest.permission.VIBRATE;
 import static android.animation.ValueAnimator.AnimatorUpdateListener;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.graphics.Paint.Style;
 import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static android.os.Build.VERSION_CODES.N;
+import static android.os.Build.VERSION_CODES.O;
 import static com.mattprecious.telescope.Preconditions.checkNotNull;
 
 /**
@@ -58,14 +66,15 @@ import static com.mattprecious.telescope.Preconditions.checkNotNull;
  */
 public class TelescopeLayout extends FrameLayout {
   private static final String TAG = "Telescope";
-  private static final SimpleDateFormat SCREENSHOT_FILE_FORMAT =
-      new SimpleDateFormat("'telescope'-yyyy-MM-dd-HHmmss.'png'", Locale.US);
   private static final int PROGRESS_STROKE_DP = 4;
   private static final long CANCEL_DURATION_MS = 250;
   private static final long DONE_DURATION_MS = 1000;
   private static final long TRIGGER_DURATION_MS = 1000;
   private static final long VIBRATION_DURATION_MS = 50;
+  private static final int MAX_VIDEO_DURATION_MS = 60 * 1000;
+  private static final long MAX_FOCUS_WAIT_MS = 1000;
 
+  private static final int BYTES_PER_PIXEL = 4;
   private static final int DEFAULT_POINTER_COUNT = 2;
   private static final int DEFAULT_PROGRESS_COLOR = 0xff2196f3;
 
@@ -80,6 +89,25 @@ public class TelescopeLayout extends FrameLayout {
       trigger();
     }
   };
+  private Runnable prewarm;
+  private Runnable pendingFocusAction;
+  private final Runnable runPendingFocusAction = new Runnable() {
+    @Override public void run() {
+      Runnable action = pendingFocusAction;
+      pendingFocusAction = null;
+      if (action != null) {
+        action.run();
+      }
+    }
+  };
+  private final MessageQueue.IdleHandler compactWhenIdle = new MessageQueue.IdleHandler() {
+    @Override public boolean queueIdle() {
+      if (compactor != null) {
+        compactor.schedule();
+      }
+      return false;
+    }
+  };
   private final IntentFilter requestCaptureFilter;
   private final BroadcastReceiver requestCaptureReceiver;
 
@@ -88,13 +116,32 @@ public class TelescopeLayout extends FrameLayout {
   private final ValueAnimator progressAnimator;
   private final ValueAnimator progressCancelAnimator;
   private final ValueAnimator doneAnimator;
+  private final BitmapPool bitmapPool;
 
   private Lens lens;
   private View screenshotTarget;
   private int pointerCount;
   private ScreenshotMode screenshotMode;
   private boolean screenshotChildrenOnly;
+  private float screenshotScale;
+  private boolean screenshotTargetRegion;
   private boolean vibrate;
+  private ScreenshotEncoder screenshotEncoder = ScreenshotEncoder.png();
+  private boolean keepCaptureSession;
+  private TileStore tileStore; // Null unless delta storage is enabled.
+  private boolean deduplicateScreenshots;
+  private ScreenshotCompactor compactor; // Null unless compaction is enabled.
+  private ScreenshotStore screenshotStore; // Null unless a quota is set.
+  private BufferPool bufferPool; // Null unless memory storage is enabled.
+  private ProjectionSession projectionSession;
+  private PlaneCopier planeCopier; // Only accessed on the background handler.
+  private int replaySeconds;
+  private int replayMaxBytes;
+  private ReplayRecorder replayRecorder;
+  private boolean requestingCapture; // Waiting on the screen capture permission dialog.
+  private boolean requestingReplayOnly; // Nothing to capture once permission is granted.
+  private VideoRecorder videoRecorder;
+  private ProjectionSession videoSession;
 
   // State.
   private float progressFraction;
@@ -102,6 +149,7 @@ public class TelescopeLayout extends FrameLayout {
   private boolean pressing;
   private boolean capturing;
   private boolean saving;
+  private InstantReplay capturedReplay;
 
   public TelescopeLayout(Context context) {
     this(context, null);
@@ -116,9 +164,14 @@ public class TelescopeLayout extends FrameLayout {
     setWillNotDraw(false);
     screenshotTarget = this;
 
-    float density = context.getResources().getDisplayMetrics().density;
+    DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    float density = displayMetrics.density;
     halfStrokeWidth = PROGRESS_STROKE_DP * density / 2;
 
+    // Enough to keep one full-screen capture around for the next one.
+    bitmapPool = new BitmapPool(
+        (long) displayMetrics.widthPixels * displayMetrics.heightPixels * BYTES_PER_PIXEL);
+
     TypedArray a =
         context.obtainStyledAttributes(attrs, R.styleable.telescope_TelescopeLayout, defStyle, 0);
     pointerCount = a.getInt(R.styleable.telescope_TelescopeLayout_telescope_pointerCount,
@@ -130,7 +183,21 @@ public class TelescopeLayout extends FrameLayout {
         ScreenshotMode.SYSTEM.ordinal())];
     screenshotChildrenOnly =
         a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_screenshotChildrenOnly, false);
+    setScreenshotScale(
+        a.getFloat(R.styleable.telescope_TelescopeLayout_telescope_screenshotScale, 1));
+    screenshotTargetRegion =
+        a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_screenshotTargetRegion, false);
     vibrate = a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_vibrate, true);
+    keepCaptureSession =
+        a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_keepCaptureSession, false);
+    setDeltaStorage(
+        a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_deltaStorage, false));
+    deduplicateScreenshots = a.getBoolean(
+        R.styleable.telescope_TelescopeLayout_telescope_deduplicateScreenshots, false);
+    setCompactScreenshots(
+        a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_compactScreenshots, false));
+    setMemoryStorage(
+        a.getBoolean(R.styleable.telescope_TelescopeLayout_telescope_memoryStorage, false));
     a.recycle();
 
     progressPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -189,28 +256,53 @@ public class TelescopeLayout extends FrameLayout {
         @TargetApi(Build.VERSION_CODES.LOLLIPOP) @Override
         public void onReceive(Context context, Intent intent) {
           unregisterRequestCaptureReceiver();
+          boolean replayOnly = requestingReplayOnly;
+          requestingCapture = false;
+          requestingReplayOnly = false;
 
           int resultCode = intent.getIntExtra(RequestCaptureActivity.RESULT_EXTRA_CODE,
               Activity.RESULT_CANCELED);
           Intent data = intent.getParcelableExtra(RequestCaptureActivity.RESULT_EXTRA_DATA);
 
-          final MediaProjection mediaProjection =
-              projectionManager.getMediaProjection(resultCode, data);
+          MediaProjection mediaProjection = projectionManager.getMediaProjection(resultCode, data);
           if (mediaProjection == null) {
-            captureCanvasScreenshot();
+            if (replayOnly) {
+              Log.w(TAG, "Screen capture permission denied. Instant replay will not record.");
+            } else {
+              captureCanvasScreenshot();
+            }
             return;
           }
 
-          if (intent.getBooleanExtra(RequestCaptureActivity.RESULT_EXTRA_PROMPT_SHOWN, true)) {
-            // Delay capture until after the permission dialog is gone.
-            postDelayed(new Runnable() {
-              @Override public void run() {
-                captureNativeScreenshot(mediaProjection);
-              }
-            }, 500);
-          } else {
-            captureNativeScreenshot(mediaProjection);
+          final ProjectionSession session =
+              new ProjectionSession(mediaProjection, getBackgroundHandler());
+          if (replayOnly && (replaySeconds == 0 || getWindowToken() == null)) {
+            // Replay was disabled or we were detached while the dialog was up.
+            session.release();
+            return;
           }
+
+          if (keepCaptureSession || replaySeconds > 0) {
+            releaseCaptureSession();
+            projectionSession = session;
+            startReplay();
+          }
+
+          if (replayOnly) {
+            return;
+          }
+
+          // The permission dialog may still be on screen. Wait for our window to get focus back,
+          // then capture once the screen has settled so the dialog's exit animation is not caught.
+          runWhenWindowFocused(new Runnable() {
+            @Override public void run() {
+              if (screenshotMode == ScreenshotMode.VIDEO) {
+                startRecording(session);
+              } else {
+                captureNativeScreenshot(session, true);
+              }
+            }
+          });
         }
       };
     }
@@ -229,6 +321,55 @@ public class TelescopeLayout extends FrameLayout {
     delete(path);
   }
 
+  /**
+   * Delete the screenshot folder for this app on Telescope's background thread. Screenshots that
+   * another app has open, or was recently handed a reference to, are kept.
+   *
+   * @see #cleanUpAsync(Context, CleanUpListener)
+   */
+  public static void cleanUpAsync(@NonNull Context context) {
+    cleanUpAsync(context, null);
+  }
+
+  /**
+   * Delete the screenshot folder for this app on Telescope's background thread. Screenshots that
+   * another app has open, or was recently handed a reference to, are kept. {@code listener} is
+   * called on the main thread when done.
+   */
+  public static void cleanUpAsync(@NonNull Context context, @Nullable CleanUpListener listener) {
+    checkNotNull(context, "context == null");
+    Handler handler = getBackgroundHandler();
+    handler.post(new CleanUpTask(context.getApplicationContext(), handler, listener));
+  }
+
+  /**
+   * Make sure that a screenshot saved with delta storage has been written out as a PNG, building
+   * it from its tiles if needed. Screenshots are built before they are handed to a {@link Lens},
+   * so this is only needed for one whose build was interrupted. Screenshots opened through
+   * {@link TelescopeFileProvider} are always built first.
+   *
+   * @see #setDeltaStorage(boolean)
+   */
+  @WorkerThread public static void materializeScreenshot(@NonNull File screenshot)
+      throws IOException {
+    checkNotNull(screenshot, "screenshot == null");
+    TileStore.materialize(screenshot);
+  }
+
+  /**
+   * Return up to {@code limit} of the most recent screenshots and recordings that are still saved,
+   * newest first. Captures are looked up in a catalog Telescope keeps as it saves them, so no files
+   * are read or decoded.
+   */
+  @WorkerThread @NonNull public static List<Capture> getRecentCaptures(@NonNull Context context,
+      @IntRange(from = 0) int limit) {
+    checkNotNull(context, "context == null");
+    if (limit < 0) {
+      throw new IllegalArgumentException("limit < 0");
+    }
+    return ScreenshotCatalog.forFolder(getScreenshotFolder(context)).recent(limit);
+  }
+
   /** Set the {@link Lens} to be called when the user triggers a capture. */
   public void setLens(@NonNull Lens lens) {
     checkNotNull(lens, "lens == null");
@@ -263,12 +404,204 @@ public class TelescopeLayout extends FrameLayout {
     this.screenshotChildrenOnly = screenshotChildrenOnly;
   }
 
+  /**
+   * Set the scale at which screenshots and recordings are captured, relative to their full
+   * resolution. Smaller captures use less memory and are faster to save and share. Default is 1.
+   */
+  public void setScreenshotScale(
+      @FloatRange(from = 0, to = 1, fromInclusive = false) float screenshotScale) {
+    // Written so that NaN is rejected too.
+    if (!(screenshotScale > 0 && screenshotScale <= 1)) {
+      throw new IllegalArgumentException("screenshotScale must be in (0, 1]");
+    }
+
+    this.screenshotScale = screenshotScale;
+  }
+
+  /**
+   * Set the {@link ScreenshotEncoder} used to save screenshots. Default is
+   * {@link ScreenshotEncoder#png()}. {@link ScreenshotMode#SCROLLING} screenshots are always saved
+   * as PNG.
+   */
+  public void setScreenshotEncoder(@NonNull ScreenshotEncoder screenshotEncoder) {
+    checkNotNull(screenshotEncoder, "screenshotEncoder == null");
+    this.screenshotEncoder = screenshotEncoder;
+  }
+
   /** Set the target view that the screenshot will capture. */
   public void setScreenshotTarget(@NonNull View screenshotTarget) {
     checkNotNull(screenshotTarget, "screenshotTarget == null");
     this.screenshotTarget = screenshotTarget;
   }
 
+  /**
+   * Set whether the screen capture session used by {@link ScreenshotMode#SYSTEM} is kept alive
+   * between captures. When enabled, permission is only requested for the first capture and later
+   * captures are taken from a paused virtual display, which is much faster. The session is released
+   * when this view is detached from its window. The session is always kept while instant replay is
+   * enabled. Default is false.
+   */
+  public void setKeepCaptureSession(boolean keepCaptureSession) {
+    this.keepCaptureSession = keepCaptureSession;
+    if (!keepCaptureSession && replaySeconds == 0) {
+      releaseCaptureSession();
+    }
+  }
+
+  /**
+   * <p>Record the last {@code seconds} of the screen while enabled and pass them to
+   * {@link Lens#onCapture(File, InstantReplay)} with each capture. Frames are downscaled and JPEG
+   * encoded a few times per second into a buffer that never holds more than {@code maxBytes}.
+   * Pass 0 seconds to disable. Disabled by default.</p>
+   *
+   * <p>Recording uses the {@link ScreenshotMode#SYSTEM} capture session in every screenshot mode.
+   * Screen capture permission is requested as soon as replay is enabled while this view is
+   * attached, or when it is next attached, and recording begins once it has been granted. The
+   * session is kept alive until this view is detached. Requires API 21+, otherwise nothing is
+   * recorded and a warning is logged.</p>
+   */
+  public void setInstantReplay(@IntRange(from = 0) int seconds, @IntRange(from = 1) int maxBytes) {
+    if (seconds < 0) {
+      throw new IllegalArgumentException("seconds < 0");
+    }
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes < 1");
+    }
+
+    replaySeconds = seconds;
+    replayMaxBytes = maxBytes;
+
+    if (seconds == 0) {
+      stopReplay();
+    } else if (projectionSession == null || projectionSession.isReleased()) {
+      requestReplaySession();
+    } else {
+      startReplay();
+    }
+  }
+
+  /**
+   * Set the maximum number of bytes of screenshot bitmaps kept for reuse by later captures. Set to
+   * 0 to disable reuse. Default is the size of one full-screen screenshot.
+   */
+  public void setBitmapPoolSize(@IntRange(from = 0) long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes < 0");
+    }
+
+    bitmapPool.setMaxBytes(maxBytes);
+  }
+
+  /**
+   * <p>Set whether screenshots are stored as tiles, only writing the parts of the screen that
+   * changed since the previous capture. Default is false.</p>
+   *
+   * <p>The PNG is built from the tiles before the file is handed to the {@link Lens}, so lenses
+   * read it as usual. The screenshot encoder is not used.</p>
+   */
+  public void setDeltaStorage(boolean deltaStorage) {
+    if (!deltaStorage) {
+      tileStore = null;
+    } else if (tileStore == null) {
+      tileStore = new TileStore(getScreenshotFolder(getContext()));
+    }
+  }
+
+  /**
+   * Set whether a screenshot with exactly the same pixels as an earlier one that is still saved
+   * reuses that file instead of being encoded and written again. The {@link Lens} is given the
+   * earlier file. Default is false.
+   */
+  public void setDeduplicateScreenshots(boolean deduplicateScreenshots) {
+    this.deduplicateScreenshots = deduplicateScreenshots;
+  }
+
+  /**
+   * <p>Set whether screenshots saved with {@link ScreenshotEncoder#qoi()} are rewritten as compact
+   * PNGs in the background once the app is idle. Default is false.</p>
+   *
+   * <p>The QOI file is deleted once its PNG has been written. Content URIs from
+   * {@link TelescopeFileProvider} keep working since they already serve the PNG, and PNGs that
+   * another app has open are left alone until they are closed.</p>
+   */
+  public void setCompactScreenshots(boolean compactScreenshots) {
+    if (!compactScreenshots) {
+      compactor = null;
+      Looper.myQueue().removeIdleHandler(compactWhenIdle);
+    } else if (compactor == null) {
+      compactor =
+          new ScreenshotCompactor(getScreenshotFolder(getContext()), getBackgroundHandler());
+      // Pick up anything left over from before.
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * <p>Set whether screenshots are encoded into memory instead of being saved to a file, for
+   * lenses that only need the bytes, like one that uploads them. Default is false.</p>
+   *
+   * <p>Only lenses that override {@link Lens#onCapture(ScreenshotBuffer)} are given screenshots
+   * this way; others keep getting files. Buffers are reused once released, so captures after the
+   * first rarely allocate. Scrolling screenshots and recordings are always saved to a file, and
+   * delta storage and deduplication do not apply.</p>
+   */
+  public void setMemoryStorage(boolean memoryStorage) {
+    if (!memoryStorage) {
+      bufferPool = null;
+    } else if (bufferPool == null) {
+      DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+      // Enough to hold a couple of encoded full-screen screenshots, which are rarely bigger than
+      // half of the raw pixels.
+      bufferPool = new BufferPool(
+          (long) displayMetrics.widthPixels * displayMetrics.heightPixels * BYTES_PER_PIXEL);
+    }
+  }
+
+  /**
+   * <p>Limit the screenshot folder to {@code maxBytes} and {@code maxFiles}, deleting the least
+   * recently used screenshots in the background after each capture. Pass 0 for either to leave it
+   * unbounded. Unbounded by default.</p>
+   *
+   * <p>Screenshots are used when captured, reused by
+   * {@link #setDeduplicateScreenshots(boolean)}, or opened through
+   * {@link TelescopeFileProvider}. The most recent screenshot is always kept, as is any screenshot
+   * another app has open or was handed a content URI for in the last 30 minutes. The tiles of
+   * {@link #setDeltaStorage(boolean) delta storage} count towards {@code maxBytes}.</p>
+   */
+  public void setScreenshotQuota(@IntRange(from = 0) long maxBytes,
+      @IntRange(from = 0) int maxFiles) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes < 0");
+    }
+    if (maxFiles < 0) {
+      throw new IllegalArgumentException("maxFiles < 0");
+    }
+
+    if (maxBytes == 0 && maxFiles == 0) {
+      screenshotStore = null;
+      return;
+    }
+
+    if (screenshotStore == null) {
+      screenshotStore =
+          new ScreenshotStore(getScreenshotFolder(getContext()), getBackgroundHandler());
+    }
+    screenshotStore.setQuota(maxBytes, maxFiles);
+    screenshotStore.schedule();
+  }
+
+  /**
+   * <p>Set whether {@link ScreenshotMode#SYSTEM} and {@link ScreenshotMode#PIXEL_COPY} screenshots
+   * of a different target view, or of children only, read back just the target's region of the
+   * screen instead of falling back to {@link ScreenshotMode#CANVAS}. Unlike a canvas screenshot,
+   * the region includes anything displayed on top of the target. Default is false.</p>
+   *
+   * <p>Region screenshots in {@link ScreenshotMode#PIXEL_COPY} mode require API 26+.</p>
+   */
+  public void setScreenshotTargetRegion(boolean screenshotTargetRegion) {
+    this.screenshotTargetRegion = screenshotTargetRegion;
+  }
+
   /**
    * <p>Set whether vibration is enabled when a capture is triggered. Default is true.</p>
    *
@@ -278,6 +611,27 @@ public class TelescopeLayout extends FrameLayout {
     this.vibrate = vibrate;
   }
 
+  @Override protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    requestReplaySession();
+  }
+
+  @Override protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    stopRecording();
+    releaseCaptureSession();
+    bitmapPool.clear();
+  }
+
+  @Override public void onWindowFocusChanged(boolean hasWindowFocus) {
+    super.onWindowFocusChanged(hasWindowFocus);
+
+    if (hasWindowFocus && pendingFocusAction != null) {
+      handler.removeCallbacks(runPendingFocusAction);
+      runPendingFocusAction.run();
+    }
+  }
+
   @Override public boolean onInterceptTouchEvent(MotionEvent ev) {
     if (!isEnabled()) {
       return false;
@@ -392,6 +746,7 @@ public class TelescopeLayout extends FrameLayout {
     progressAnimator.setFloatValues(progressFraction, 1);
     progressAnimator.start();
     handler.postDelayed(trigger, TRIGGER_DURATION_MS);
+    prewarm();
   }
 
   private void stop() {
@@ -404,11 +759,84 @@ public class TelescopeLayout extends FrameLayout {
     progressCancelAnimator.setFloatValues(progressFraction, 0);
     progressCancelAnimator.start();
     handler.removeCallbacks(trigger);
+    if (prewarm != null) {
+      getBackgroundHandler().removeCallbacks(prewarm);
+      prewarm = null;
+    }
+  }
+
+  /**
+   * Speculatively prepare what the capture will need while the trigger animation runs: the
+   * background thread, the screenshot folder, a screenshot-sized bitmap in the pool, and the
+   * capture session's reader. Everything here is only a head start; captures work the same without
+   * it, and anything not yet done is dropped if the press is cancelled.
+   */
+  private void prewarm() {
+    if (screenshotMode == ScreenshotMode.NONE) {
+      return;
+    }
+
+    final Context context = getContext();
+    final Point size = getExpectedScreenshotSize();
+    prewarm = new Runnable() {
+      @Override public void run() {
+        getScreenshotFolder(context).mkdirs();
+        if (size != null) {
+          // Allocate off the main thread. The capture will take it back out of the pool.
+          bitmapPool.put(bitmapPool.get(size.x, size.y, Bitmap.Config.ARGB_8888));
+        }
+      }
+    };
+    getBackgroundHandler().post(prewarm);
+
+    if (screenshotMode == ScreenshotMode.SYSTEM
+        && projectionSession != null
+        && !projectionSession.isReleased()) {
+      DisplayMetrics displayMetrics = getRealDisplayMetrics();
+      projectionSession.prepare(scaled(displayMetrics.widthPixels),
+          scaled(displayMetrics.heightPixels), scaled(displayMetrics.densityDpi));
+    }
+  }
+
+  /** Only used when system captures are supported, which is after getRealMetrics was added. */
+  @TargetApi(LOLLIPOP) private DisplayMetrics getRealDisplayMetrics() {
+    DisplayMetrics displayMetrics = new DisplayMetrics();
+    windowManager.getDefaultDisplay().getRealMetrics(displayMetrics);
+    return displayMetrics;
+  }
+
+  /** The size of the bitmap the next capture will need, or null if it can't be predicted. */
+  private Point getExpectedScreenshotSize() {
+    switch (screenshotMode) {
+      case CANVAS:
+      case WINDOWS:
+        View view = getTargetView();
+        return new Point(scaled(view.getWidth()), scaled(view.getHeight()));
+      case PIXEL_COPY:
+        if (capturesWholeWindow()) {
+          View root = getRootView();
+          return new Point(scaled(root.getWidth()), scaled(root.getHeight()));
+        }
+        return null;
+      case SYSTEM:
+        // Frames encoded straight from the captured pixels never need a bitmap.
+        if (projectionManager != null && capturesWholeWindow() && !encodesSystemPixels()) {
+          DisplayMetrics displayMetrics = getRealDisplayMetrics();
+          return new Point(scaled(displayMetrics.widthPixels), scaled(displayMetrics.heightPixels));
+        }
+        return null;
+      default:
+        return null;
+    }
   }
 
   private void trigger() {
     stop();
 
+    if (replayRecorder != null) {
+      capturedReplay = replayRecorder.snapshot();
+    }
+
     if (vibrate && hasVibratePermission(getContext())) {
       vibrator.vibrate(VIBRATION_DURATION_MS);
     }
@@ -416,12 +844,15 @@ public class TelescopeLayout extends FrameLayout {
     switch (screenshotMode) {
       case SYSTEM:
         if (projectionManager != null
-            && !screenshotChildrenOnly
-            && screenshotTarget == this
+            && (capturesWholeWindow() || screenshotTargetRegion)
             && !windowHasSecureFlag()) {
+          if (projectionSession != null && !projectionSession.isReleased()) {
+            captureNativeScreenshot(projectionSession, false);
+            break;
+          }
+
           // Take a full screenshot of the device. Request permission first.
-          registerRequestCaptureReceiver();
-          getContext().startActivity(new Intent(getContext(), RequestCaptureActivity.class));
+          requestCapturePermission();
           break;
         }
 
@@ -429,24 +860,78 @@ public class TelescopeLayout extends FrameLayout {
       case CANVAS:
         captureCanvasScreenshot();
         break;
+      case PIXEL_COPY:
+        if (SDK_INT >= N
+            && (capturesWholeWindow() || (screenshotTargetRegion && SDK_INT >= O))
+            && !windowHasSecureFlag()) {
+          capturePixelCopyScreenshot();
+        } else {
+          captureCanvasScreenshot();
+        }
+        break;
       case NONE:
-        new SaveScreenshotTask(null).execute();
+        new SaveScreenshotTask(null, ScreenshotMode.NONE).execute();
+        break;
+      case SCROLLING:
+        if (ScrollingCapture.canCapture(screenshotTarget)) {
+          captureScrollingScreenshot();
+        } else {
+          captureCanvasScreenshot();
+        }
+        break;
+      case WINDOWS:
+        if (capturesWholeWindow()) {
+          captureWindowsScreenshot();
+        } else {
+          captureCanvasScreenshot();
+        }
+        break;
+      case VIDEO:
+        if (videoRecorder != null) {
+          stopRecording();
+          break;
+        }
+
+        if (projectionManager != null && !windowHasSecureFlag()) {
+          if (projectionSession != null && !projectionSession.isReleased()) {
+            startRecording(projectionSession);
+            break;
+          }
+
+          // Record the screen of the device. Request permission first.
+          requestCapturePermission();
+          break;
+        }
+
+        // Recording isn't supported. Take a still screenshot instead.
+        captureCanvasScreenshot();
         break;
       default:
         throw new IllegalStateException("Unknown screenshot mode: " + screenshotMode);
     }
   }
 
-  private boolean windowHasSecureFlag() {
-    // Find an activity.
-    Context context = getContext();
-    while (!(context instanceof Activity) && context instanceof ContextWrapper) {
-      context = ((ContextWrapper) context).getBaseContext();
+  /**
+   * Run {@code action} once our window has focus, which it does not while a system dialog is
+   * showing. Gives up waiting after {@link #MAX_FOCUS_WAIT_MS}.
+   */
+  private void runWhenWindowFocused(Runnable action) {
+    if (hasWindowFocus()) {
+      action.run();
+      return;
     }
 
+    pendingFocusAction = action;
+    handler.removeCallbacks(runPendingFocusAction);
+    handler.postDelayed(runPendingFocusAction, MAX_FOCUS_WAIT_MS);
+  }
+
+  private boolean windowHasSecureFlag() {
+    Activity activity = findActivity();
+
     //noinspection SimplifiableIfStatement
-    if (context instanceof Activity) {
-      return (((Activity) context).getWindow().getAttributes().flags
+    if (activity != null) {
+      return (activity.getWindow().getAttributes().flags
           & WindowManager.LayoutParams.FLAG_SECURE) != 0;
     }
 
@@ -454,6 +939,50 @@ public class TelescopeLayout extends FrameLayout {
     return true;
   }
 
+  private Activity findActivity() {
+    Context context = getContext();
+    while (!(context instanceof Activity) && context instanceof ContextWrapper) {
+      context = ((ContextWrapper) context).getBaseContext();
+    }
+
+    return context instanceof Activity ? (Activity) context : null;
+  }
+
+  /** Whether the lens overrides {@link Lens#onCapture(Bitmap, BitmapProcessorListener)}. */
+  private boolean lensProcessesBitmaps() {
+    return lensOverrides(Bitmap.class, BitmapProcessorListener.class);
+  }
+
+  /**
+   * Whether system screenshots are encoded straight from the captured frame, without a bitmap.
+   * That needs an encoder that can, and a lens that neither processes bitmaps nor is given a
+   * delta storage file.
+   */
+  private boolean encodesSystemPixels() {
+    return lens != null
+        && screenshotEncoder.canEncodePixels()
+        && (lensTakesBuffers() || tileStore == null)
+        && !lensProcessesBitmaps();
+  }
+
+  /** Whether screenshots should be kept in memory and given to the lens as buffers. */
+  private boolean lensTakesBuffers() {
+    return bufferPool != null
+        && (lensOverrides(ScreenshotBuffer.class)
+        || lensOverrides(ScreenshotBuffer.class, InstantReplay.class));
+  }
+
+  private boolean lensOverrides(Class<?>... onCaptureParameterTypes) {
+    checkLens();
+    try {
+      return lens.getClass()
+          .getMethod("onCapture", onCaptureParameterTypes)
+          .getDeclaringClass() != Lens.class;
+    } catch (NoSuchMethodException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   private void checkLens() {
     if (lens == null) {
       throw new IllegalStateException("Must call setLens() before capturing a screenshot.");
@@ -467,27 +996,209 @@ public class TelescopeLayout extends FrameLayout {
     post(new Runnable() {
       @Override public void run() {
         View view = getTargetView();
-        view.setDrawingCacheEnabled(true);
-        Bitmap screenshot = Bitmap.createBitmap(view.getDrawingCache());
-        view.setDrawingCacheEnabled(false);
+        Bitmap screenshot = bitmapPool.get(scaled(view.getWidth()), scaled(view.getHeight()),
+            Bitmap.Config.ARGB_8888);
+        screenshot.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(screenshot);
+        canvas.scale(screenshotScale, screenshotScale);
+        canvas.translate(-view.getScrollX(), -view.getScrollY());
+        view.draw(canvas);
+
+        capturingEnd();
+
+        checkLens();
+        lens.onCapture(screenshot, saveWhenReady(screenshot, ScreenshotMode.CANVAS));
+      }
+    });
+  }
+
+  private void captureScrollingScreenshot() {
+    capturingStart();
+
+    // Wait for the next frame to be sure our progress bars are hidden.
+    post(new Runnable() {
+      @Override public void run() {
+        saving = true;
+
+        File file = newScreenshotFile(getContext(), "png");
+        new ScrollingCapture(screenshotTarget, screenshotScale, bitmapPool, handler,
+            getBackgroundHandler(), file, new ScrollingCapture.Callback() {
+              @Override public void onCaptured(File file) {
+                capturingEnd();
+                saving = false;
+                deliverCapture(file);
+              }
+            }).start();
+      }
+    });
+  }
+
+  private void captureWindowsScreenshot() {
+    capturingStart();
+
+    // Wait for the next frame to be sure our progress bars are hidden.
+    post(new Runnable() {
+      @Override public void run() {
+        View base = getTargetView();
+        List<View> roots = WindowRoots.find();
+        if (roots == null) {
+          roots = Collections.singletonList(base);
+        }
+
+        int[] baseLocation = new int[2];
+        base.getLocationOnScreen(baseLocation);
+
+        Bitmap screenshot = bitmapPool.get(scaled(base.getWidth()), scaled(base.getHeight()),
+            Bitmap.Config.ARGB_8888);
+        screenshot.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(screenshot);
+        canvas.scale(screenshotScale, screenshotScale);
+
+        // Draw every visible window, bottom to top, at its position relative to our window.
+        int[] location = new int[2];
+        for (View root : roots) {
+          if (!root.isShown()) {
+            continue;
+          }
+
+          ViewGroup.LayoutParams params = root.getLayoutParams();
+          if (root != base && params instanceof WindowManager.LayoutParams) {
+            WindowManager.LayoutParams windowParams = (WindowManager.LayoutParams) params;
+            if ((windowParams.flags & WindowManager.LayoutParams.FLAG_DIM_BEHIND) != 0) {
+              canvas.drawColor(Color.argb(Math.round(windowParams.dimAmount * 255), 0, 0, 0));
+            }
+          }
+
+          root.getLocationOnScreen(location);
+          int saveCount = canvas.save();
+          canvas.translate(location[0] - baseLocation[0] - root.getScrollX(),
+              location[1] - baseLocation[1] - root.getScrollY());
+          root.draw(canvas);
+          canvas.restoreToCount(saveCount);
+        }
 
         capturingEnd();
 
         checkLens();
-        lens.onCapture(screenshot, new BitmapProcessorListener() {
-          @Override public void onBitmapReady(Bitmap screenshot) {
-            new SaveScreenshotTask(screenshot).execute();
+        lens.onCapture(screenshot, saveWhenReady(screenshot, ScreenshotMode.WINDOWS));
+      }
+    });
+  }
+
+  @TargetApi(N) private void capturePixelCopyScreenshot() {
+    capturingStart();
+
+    postAfterNextFrame(new Runnable() {
+      @Override public void run() {
+        Activity activity = findActivity();
+        if (activity == null) {
+          // No window to copy from.
+          capturingEnd();
+          captureCanvasScreenshot();
+          return;
+        }
+
+        Window window = activity.getWindow();
+        View decorView = window.getDecorView();
+        Rect region = SDK_INT >= O && capturesRegion()
+            ? getTargetRegion(true, decorView.getWidth(), decorView.getHeight())
+            : null;
+
+        // PixelCopy scales the window to fit the destination.
+        int width = scaled(region == null ? decorView.getWidth() : region.width());
+        int height = scaled(region == null ? decorView.getHeight() : region.height());
+
+        final Bitmap bitmap = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        PixelCopy.OnPixelCopyFinishedListener listener =
+            new PixelCopy.OnPixelCopyFinishedListener() {
+              @Override public void onPixelCopyFinished(int copyResult) {
+                post(new Runnable() {
+                  @Override public void run() {
+                    capturingEnd();
+                  }
+                });
+
+                if (copyResult != PixelCopy.SUCCESS) {
+                  Log.e(TAG, "Failed to copy window pixels (" + copyResult + "). Using CANVAS.");
+                  bitmapPool.put(bitmap);
+                  post(new Runnable() {
+                    @Override public void run() {
+                      captureCanvasScreenshot();
+                    }
+                  });
+                  return;
+                }
+
+                post(new Runnable() {
+                  @Override public void run() {
+                    saving = true;
+
+                    checkLens();
+                    lens.onCapture(bitmap, saveWhenReady(bitmap, ScreenshotMode.PIXEL_COPY));
+                  }
+                });
+              }
+            };
+
+        try {
+          if (region == null) {
+            PixelCopy.request(window, bitmap, listener, getBackgroundHandler());
+          } else {
+            PixelCopy.request(window, region, bitmap, listener, getBackgroundHandler());
           }
-        });
+        } catch (IllegalArgumentException e) {
+          Log.e(TAG, "Failed to copy window pixels. Setting the screenshot mode to CANVAS.", e);
+          bitmapPool.put(bitmap);
+          setScreenshotMode(ScreenshotMode.CANVAS);
+          capturingEnd();
+          captureCanvasScreenshot();
+        }
       }
     });
   }
 
+  /**
+   * Run {@code action} once a frame drawn after this call has been handed to the window's surface.
+   */
+  @TargetApi(JELLY_BEAN) private void postAfterNextFrame(final Runnable action) {
+    postOnAnimation(new Runnable() {
+      @Override public void run() {
+        // This frame draws the hidden progress bars. Run on the one after it.
+        postOnAnimation(action);
+      }
+    });
+  }
+
+  /**
+   * Create a listener which saves the processed screenshot. Once the lens has finished with the
+   * captured bitmap it is returned to the pool.
+   */
+  private BitmapProcessorListener saveWhenReady(final Bitmap captured,
+      final ScreenshotMode mode) {
+    return new BitmapProcessorListener() {
+      @Override public void onBitmapReady(Bitmap screenshot) {
+        if (screenshot != captured) {
+          bitmapPool.put(captured);
+        }
+
+        if (lensTakesBuffers()) {
+          new EncodeScreenshotTask(screenshot, bufferPool).execute();
+        } else {
+          new SaveScreenshotTask(screenshot, mode).execute();
+        }
+      }
+    };
+  }
+
   private void capturingStart() {
+    clearProgress();
+    capturing = true;
+  }
+
+  /** Stop drawing the progress border, which would otherwise end up in the capture. */
+  private void clearProgress() {
     progressAnimator.end();
     progressFraction = 0;
-
-    capturing = true;
     invalidate();
   }
 
@@ -511,6 +1222,44 @@ public class TelescopeLayout extends FrameLayout {
     return view;
   }
 
+  /** Whether the screenshot target is the whole window this view is in. */
+  private boolean capturesWholeWindow() {
+    return !screenshotChildrenOnly && screenshotTarget == this;
+  }
+
+  /** Whether only the target view's region of the window or screen should be captured. */
+  private boolean capturesRegion() {
+    return screenshotTargetRegion && !capturesWholeWindow();
+  }
+
+  /**
+   * Find the bounds of the target view within its window, or on the screen if {@code inWindow} is
+   * false, clipped to a {@code width} x {@code height} area. If the target is not visible in that
+   * area, the whole area is returned.
+   */
+  private Rect getTargetRegion(boolean inWindow, int width, int height) {
+    View view = getTargetView();
+    int[] location = new int[2];
+    if (inWindow) {
+      view.getLocationInWindow(location);
+    } else {
+      view.getLocationOnScreen(location);
+    }
+
+    Rect region = new Rect(location[0], location[1], location[0] + view.getWidth(),
+        location[1] + view.getHeight());
+    if (!region.intersect(0, 0, width, height)) {
+      region.set(0, 0, width, height);
+    }
+
+    return region;
+  }
+
+  /** Apply the screenshot scale to a full-resolution size. */
+  private int scaled(int size) {
+    return Math.max(1, Math.round(size * screenshotScale));
+  }
+
   /** Recursive delete of a file or directory. */
   private static void delete(File file) {
     if (file.isDirectory()) {
@@ -525,10 +1274,14 @@ public class TelescopeLayout extends FrameLayout {
     file.delete();
   }
 
-  private static File getScreenshotFolder(Context context) {
+  static File getScreenshotFolder(Context context) {
     return new File(context.getExternalFilesDir(null), "telescope");
   }
 
+  private static File newScreenshotFile(Context context, String extension) {
+    return ScreenshotFiles.newFile(getScreenshotFolder(context), extension);
+  }
+
   private static boolean hasVibratePermission(Context context) {
     return context.checkPermission(VIBRATE, Process.myPid(), Process.myUid()) == PERMISSION_GRANTED;
   }
@@ -540,10 +1293,18 @@ public class TelescopeLayout extends FrameLayout {
   private class SaveScreenshotTask extends AsyncTask<Void, Void, File> {
     private final Context context;
     private final Bitmap screenshot;
+    private final ScreenshotMode mode;
+    private final ScreenshotEncoder encoder;
+    private final TileStore tileStore;
+    private final boolean deduplicate;
 
-    SaveScreenshotTask(Bitmap screenshot) {
+    SaveScreenshotTask(Bitmap screenshot, ScreenshotMode mode) {
       this.context = getContext();
       this.screenshot = screenshot;
+      this.mode = mode;
+      this.encoder = screenshotEncoder;
+      this.tileStore = TelescopeLayout.this.tileStore;
+      this.deduplicate = deduplicateScreenshots;
     }
 
     @Override protected void onPreExecute() {
@@ -555,21 +1316,54 @@ public class TelescopeLayout extends FrameLayout {
         return null;
       }
 
+      File temp = null;
       try {
         File screenshotFolder = getScreenshotFolder(context);
         screenshotFolder.mkdirs();
 
-        File file = new File(screenshotFolder, SCREENSHOT_FILE_FORMAT.format(new Date()));
-        FileOutputStream out = new FileOutputStream(file);
+        // Delta storage is always built as a PNG.
+        String extension = tileStore != null ? "png" : encoder.getFileExtension();
+        String hash = null;
+        if (deduplicate) {
+          hash = ScreenshotIndex.hash(screenshot.getWidth(), screenshot.getHeight(),
+              new ScreenshotEncoder.BitmapRowSource(screenshot), extension);
+          File existing = ScreenshotIndex.forFolder(screenshotFolder).find(hash);
+          if (existing != null) {
+            return existing;
+          }
+        }
 
-        screenshot.compress(Bitmap.CompressFormat.PNG, 100, out);
-        out.flush();
-        out.close();
+        File file = newScreenshotFile(context, extension);
+        if (tileStore != null) {
+          tileStore.save(screenshot, file);
+          // Lenses read the file directly, so it has to exist before they get it.
+          TileStore.materialize(file);
+        } else {
+          temp = ScreenshotFiles.tempFile(file);
+          FileOutputStream out = new FileOutputStream(temp);
+          try {
+            encoder.encode(screenshot, out);
+            out.flush();
+          } finally {
+            out.close();
+          }
+          ScreenshotFiles.commit(temp, file);
+        }
 
+        if (hash != null) {
+          ScreenshotIndex.forFolder(screenshotFolder).add(hash, file);
+        }
+        ScreenshotCatalog.forFolder(screenshotFolder)
+            .add(file, file.length(), screenshot.getWidth(), screenshot.getHeight(), mode, hash);
         return file;
       } catch (IOException e) {
         Log.e(TAG,
             "Failed to save screenshot. Is the WRITE_EXTERNAL_STORAGE permission requested?");
+        if (temp != null) {
+          temp.delete();
+        }
+      } finally {
+        bitmapPool.put(screenshot);
       }
 
       return null;
@@ -577,12 +1371,209 @@ public class TelescopeLayout extends FrameLayout {
 
     @Override protected void onPostExecute(File screenshot) {
       saving = false;
+      deliverCapture(screenshot);
+    }
+  }
+
+  /** Encode a screenshot into a buffer, start the done animation, and call the capture listener. */
+  private class EncodeScreenshotTask extends AsyncTask<Void, Void, ScreenshotBuffer> {
+    private final Bitmap screenshot;
+    private final BufferPool pool;
+    private final ScreenshotEncoder encoder;
+
+    EncodeScreenshotTask(Bitmap screenshot, BufferPool pool) {
+      this.screenshot = screenshot;
+      this.pool = pool;
+      this.encoder = screenshotEncoder;
+    }
+
+    @Override protected void onPreExecute() {
+      saving = true;
+    }
+
+    @Override protected ScreenshotBuffer doInBackground(Void... params) {
+      if (screenshot == null) {
+        return null;
+      }
+
+      int width = screenshot.getWidth();
+      int height = screenshot.getHeight();
+      BufferOutputStream out = new BufferOutputStream(pool, width * height);
+      try {
+        encoder.encode(screenshot, out);
+        return new ScreenshotBuffer(out.toBuffer(), pool, encoder.getFileExtension(), width,
+            height);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to encode screenshot.", e);
+        out.discard();
+      } finally {
+        bitmapPool.put(screenshot);
+      }
+
+      return null;
+    }
+
+    @Override protected void onPostExecute(ScreenshotBuffer screenshot) {
+      saving = false;
+      if (screenshot != null) {
+        deliverBuffer(screenshot);
+      } else {
+        deliverCapture(null);
+      }
+    }
+  }
+
+  /**
+   * Encode the {@code region} of an RGBA {@code plane} into a buffer from {@code pool}. Returns
+   * null if it could not be encoded. Called on the background thread.
+   */
+  @TargetApi(LOLLIPOP) private static ScreenshotBuffer encodeScreenshotPixels(
+      ScreenshotEncoder encoder, BufferPool pool, Image.Plane plane, Rect region) {
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    ByteBuffer pixels = plane.getBuffer().duplicate();
+    pixels.position(region.top * rowStride + region.left * pixelStride);
+
+    BufferOutputStream out = new BufferOutputStream(pool, region.width() * region.height());
+    try {
+      encoder.encode(pixels, region.width(), region.height(), rowStride, pixelStride, out);
+      return new ScreenshotBuffer(out.toBuffer(), pool, encoder.getFileExtension(),
+          region.width(), region.height());
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to encode screenshot.", e);
+      out.discard();
+    }
+
+    return null;
+  }
+
+  /**
+   * Encode the {@code region} of an RGBA {@code plane} straight to a new screenshot file. Returns
+   * null if it could not be saved. Called on the background thread.
+   */
+  @TargetApi(LOLLIPOP) private static File saveScreenshotPixels(Context context,
+      ScreenshotEncoder encoder, boolean deduplicate, Image.Plane plane, Rect region) {
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    ByteBuffer pixels = plane.getBuffer().duplicate();
+    pixels.position(region.top * rowStride + region.left * pixelStride);
+
+    File folder = getScreenshotFolder(context);
+    File temp = null;
+    try {
+      String hash = null;
+      if (deduplicate) {
+        hash = ScreenshotIndex.hash(region.width(), region.height(),
+            new ScreenshotEncoder.PixelRowSource(pixels, region.width(), rowStride, pixelStride),
+            encoder.getFileExtension());
+        File existing = ScreenshotIndex.forFolder(folder).find(hash);
+        if (existing != null) {
+          return existing;
+        }
+      }
+
+      folder.mkdirs();
+
+      File file = newScreenshotFile(context, encoder.getFileExtension());
+      temp = ScreenshotFiles.tempFile(file);
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        encoder.encode(pixels, region.width(), region.height(), rowStride, pixelStride, out);
+        out.flush();
+      } finally {
+        out.close();
+      }
+      ScreenshotFiles.commit(temp, file);
+
+      if (hash != null) {
+        ScreenshotIndex.forFolder(folder).add(hash, file);
+      }
+      ScreenshotCatalog.forFolder(folder).add(file, file.length(), region.width(),
+          region.height(), ScreenshotMode.SYSTEM, hash);
+      return file;
+    } catch (IOException e) {
+      Log.e(TAG,
+          "Failed to save screenshot. Is the WRITE_EXTERNAL_STORAGE permission requested?");
+      if (temp != null) {
+        temp.delete();
+      }
+    }
+
+    return null;
+  }
+
+  /** Compact screenshots the next time the main thread is idle. */
+  private void scheduleCompaction() {
+    MessageQueue queue = Looper.myQueue();
+    queue.removeIdleHandler(compactWhenIdle);
+    queue.addIdleHandler(compactWhenIdle);
+  }
+
+  /** Hand a saved screenshot or recording to the lens, along with the instant replay if any. */
+  private void deliverCapture(File file) {
+    InstantReplay replay = capturedReplay;
+    capturedReplay = null;
+
+    if (compactor != null && file != null && QoiCodec.isQoi(file)) {
+      scheduleCompaction();
+    }
+    if (screenshotStore != null && file != null) {
+      screenshotStore.schedule();
+    }
 
-      checkLens();
+    checkLens();
+    if (replay != null) {
+      lens.onCapture(file, replay);
+    } else {
+      lens.onCapture(file);
+    }
+  }
+
+  /** Hand a screenshot kept in memory to the lens, along with the instant replay if any. */
+  private void deliverBuffer(ScreenshotBuffer screenshot) {
+    InstantReplay replay = capturedReplay;
+    capturedReplay = null;
+
+    checkLens();
+    if (replay != null) {
+      lens.onCapture(screenshot, replay);
+    } else {
       lens.onCapture(screenshot);
     }
   }
 
+  private void requestCapturePermission() {
+    if (requestingCapture) {
+      // The dialog is already up for instant replay. Take this capture once it is answered.
+      requestingReplayOnly = false;
+      return;
+    }
+
+    requestingCapture = true;
+    registerRequestCaptureReceiver();
+    getContext().startActivity(new Intent(getContext(), RequestCaptureActivity.class));
+  }
+
+  /** Request a capture session for instant replay if it is enabled and doesn't have one yet. */
+  private void requestReplaySession() {
+    if (replaySeconds == 0
+        || getWindowToken() == null
+        || requestingCapture
+        || (projectionSession != null && !projectionSession.isReleased())) {
+      return;
+    }
+
+    if (projectionManager == null) {
+      if (!isInEditMode()) {
+        Log.w(TAG, "Instant replay requires API 21+. Nothing will be recorded.");
+      }
+      return;
+    }
+
+    requestCapturePermission();
+    requestingReplayOnly = true;
+  }
+
   private void registerRequestCaptureReceiver() {
     getContext().registerReceiver(requestCaptureReceiver, requestCaptureFilter);
   }
@@ -591,6 +1582,89 @@ public class TelescopeLayout extends FrameLayout {
     getContext().unregisterReceiver(requestCaptureReceiver);
   }
 
+  @TargetApi(LOLLIPOP) private void startReplay() {
+    stopReplay();
+    if (replaySeconds == 0 || projectionSession == null || projectionSession.isReleased()) {
+      return;
+    }
+
+    DisplayMetrics displayMetrics = new DisplayMetrics();
+    windowManager.getDefaultDisplay().getRealMetrics(displayMetrics);
+    replayRecorder = new ReplayRecorder(projectionSession, getBackgroundHandler(), replaySeconds,
+        replayMaxBytes);
+    replayRecorder.start(displayMetrics.widthPixels, displayMetrics.heightPixels,
+        displayMetrics.densityDpi);
+  }
+
+  private void stopReplay() {
+    if (replayRecorder != null) {
+      replayRecorder.stop();
+      replayRecorder = null;
+    }
+  }
+
+  @TargetApi(LOLLIPOP) private void startRecording(ProjectionSession session) {
+    clearProgress();
+
+    DisplayMetrics displayMetrics = new DisplayMetrics();
+    windowManager.getDefaultDisplay().getRealMetrics(displayMetrics);
+
+    File file = newScreenshotFile(getContext(), "mp4");
+    videoSession = session;
+    videoRecorder = new VideoRecorder(session, getBackgroundHandler(), file);
+    videoRecorder.start(scaled(displayMetrics.widthPixels), scaled(displayMetrics.heightPixels),
+        scaled(displayMetrics.densityDpi), MAX_VIDEO_DURATION_MS, new Runnable() {
+          @Override public void run() {
+            handler.post(new Runnable() {
+              @Override public void run() {
+                stopRecording();
+              }
+            });
+          }
+        });
+  }
+
+  @TargetApi(LOLLIPOP) private void stopRecording() {
+    if (videoRecorder == null) {
+      return;
+    }
+
+    clearProgress();
+
+    final ProjectionSession session = videoSession;
+    // Only the kept session outlives this recording.
+    final boolean releaseSession = session != projectionSession;
+    VideoRecorder recorder = videoRecorder;
+    videoRecorder = null;
+    videoSession = null;
+
+    saving = true;
+    recorder.stop(new VideoRecorder.Callback() {
+      @Override public void onRecorded(final File video) {
+        if (releaseSession) {
+          session.release();
+        }
+
+        // Use our handler rather than post() so this still runs if we were detached.
+        handler.post(new Runnable() {
+          @Override public void run() {
+            saving = false;
+            doneAnimator.start();
+            deliverCapture(video);
+          }
+        });
+      }
+    });
+  }
+
+  private void releaseCaptureSession() {
+    stopReplay();
+    if (projectionSession != null) {
+      projectionSession.release();
+      projectionSession = null;
+    }
+  }
+
   private static Handler getBackgroundHandler() {
     if (backgroundHandler == null) {
       HandlerThread backgroundThread =
@@ -602,87 +1676,115 @@ public class TelescopeLayout extends FrameLayout {
     return backgroundHandler;
   }
 
-  @TargetApi(LOLLIPOP) private void captureNativeScreenshot(final MediaProjection projection) {
+  @TargetApi(LOLLIPOP) private void captureNativeScreenshot(final ProjectionSession session,
+      final boolean waitForSettle) {
     capturingStart();
 
+    // Only the kept session outlives this capture.
+    final boolean releaseSession = session != projectionSession;
+
     // Wait for the next frame to be sure our progress bars are hidden.
     post(new Runnable() {
       @Override public void run() {
         DisplayMetrics displayMetrics = new DisplayMetrics();
         windowManager.getDefaultDisplay().getRealMetrics(displayMetrics);
-        final int width = displayMetrics.widthPixels;
-        final int height = displayMetrics.heightPixels;
-
-        ImageReader imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
-        Surface surface = imageReader.getSurface();
-
-        final VirtualDisplay display =
-            projection.createVirtualDisplay("telescope", width, height, displayMetrics.densityDpi,
-                DisplayManager.VIRTUAL_DISPLAY_FLAG_PRESENTATION, surface, null, null);
-
-        imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-          @Override public void onImageAvailable(ImageReader reader) {
-            Image image = null;
-            Bitmap bitmap = null;
-
-            try {
-              image = reader.acquireLatestImage();
-
-              post(new Runnable() {
-                @Override public void run() {
-                  capturingEnd();
-                }
-              });
-
-              if (image == null) {
-                return;
-              }
-
-              saving = true;
-
-              Image.Plane[] planes = image.getPlanes();
-              ByteBuffer buffer = planes[0].getBuffer();
-              int pixelStride = planes[0].getPixelStride();
-              int rowStride = planes[0].getRowStride();
-              int rowPadding = rowStride - pixelStride * width;
-
-              bitmap = Bitmap.createBitmap(width + rowPadding / pixelStride, height,
-                  Bitmap.Config.ARGB_8888);
-              bitmap.copyPixelsFromBuffer(buffer);
-
-              // Trim the screenshot to the correct size.
-              final Bitmap croppedBitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height);
+        // The virtual display mirrors the screen scaled to fit its own size.
+        int width = scaled(displayMetrics.widthPixels);
+        int height = scaled(displayMetrics.heightPixels);
+
+        // When capturing a region, the whole screen is still rendered but only the region's rows
+        // and columns are read back.
+        final Rect region = new Rect(0, 0, width, height);
+        if (capturesRegion()) {
+          Rect target = getTargetRegion(false, displayMetrics.widthPixels,
+              displayMetrics.heightPixels);
+          region.set(Math.round(target.left * screenshotScale),
+              Math.round(target.top * screenshotScale),
+              Math.max(Math.round(target.right * screenshotScale),
+                  Math.round(target.left * screenshotScale) + 1),
+              Math.max(Math.round(target.bottom * screenshotScale),
+                  Math.round(target.top * screenshotScale) + 1));
+          if (!region.intersect(0, 0, width, height)) {
+            region.set(0, 0, width, height);
+          }
+        }
 
-              checkLens();
-              lens.onCapture(croppedBitmap, new BitmapProcessorListener() {
-                @Override public void onBitmapReady(Bitmap screenshot) {
-                  new SaveScreenshotTask(croppedBitmap).execute();
+        // Without a lens to process the bitmap, encode straight from the captured frame.
+        final Context context = getContext();
+        final ScreenshotEncoder encoder = screenshotEncoder;
+        final boolean deduplicate = deduplicateScreenshots;
+        final BufferPool pool = lensTakesBuffers() ? bufferPool : null;
+        final boolean encodePixels = encodesSystemPixels();
+
+        session.capture(width, height, scaled(displayMetrics.densityDpi), waitForSettle,
+            new ProjectionSession.FrameCallback() {
+              @Override public void onFrame(Image image) {
+                try {
+                  post(new Runnable() {
+                    @Override public void run() {
+                      capturingEnd();
+                    }
+                  });
+
+                  saving = true;
+
+                  if (encodePixels && pool != null) {
+                    final ScreenshotBuffer buffer =
+                        encodeScreenshotPixels(encoder, pool, image.getPlanes()[0], region);
+                    post(new Runnable() {
+                      @Override public void run() {
+                        saving = false;
+                        if (buffer != null) {
+                          deliverBuffer(buffer);
+                        } else {
+                          deliverCapture(null);
+                        }
+                      }
+                    });
+                    return;
+                  }
+
+                  if (encodePixels) {
+                    final File file = saveScreenshotPixels(context, encoder, deduplicate,
+                        image.getPlanes()[0], region);
+                    post(new Runnable() {
+                      @Override public void run() {
+                        saving = false;
+                        deliverCapture(file);
+                      }
+                    });
+                    return;
+                  }
+
+                  if (planeCopier == null) {
+                    planeCopier = new PlaneCopier();
+                  }
+
+                  // Copy straight into an exact-size bitmap, dropping the row padding as we go.
+                  Bitmap bitmap = bitmapPool.get(region.width(), region.height(),
+                      Bitmap.Config.ARGB_8888);
+                  planeCopier.copy(image.getPlanes()[0], region.left, region.top, bitmap);
+
+                  checkLens();
+                  lens.onCapture(bitmap, saveWhenReady(bitmap, ScreenshotMode.SYSTEM));
+                } catch (UnsupportedOperationException e) {
+                  Log.e(TAG,
+                      "Failed to capture system screenshot. Setting the screenshot mode to CANVAS.",
+                      e);
+                  setScreenshotMode(ScreenshotMode.CANVAS);
+                  post(new Runnable() {
+                    @Override public void run() {
+                      releaseCaptureSession();
+                      captureCanvasScreenshot();
+                    }
+                  });
+                } finally {
+                  if (releaseSession) {
+                    session.release();
+                  }
                 }
-              });
-            } catch (UnsupportedOperationException e) {
-              Log.e(TAG,
-                  "Failed to capture system screenshot. Setting the screenshot mode to CANVAS.", e);
-              setScreenshotMode(ScreenshotMode.CANVAS);
-              post(new Runnable() {
-                @Override public void run() {
-                  captureCanvasScreenshot();
-                }
-              });
-            } finally {
-              if (bitmap != null) {
-                bitmap.recycle();
-              }
-
-              if (image != null) {
-                image.close();
               }
-
-              reader.close();
-              display.release();
-              projection.stop();
-            }
-          }
-        }, getBackgroundHandler());
+            });
       }
     });
   }
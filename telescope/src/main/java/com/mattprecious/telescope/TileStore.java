@@ -0,0 +1,357 @@
+package com.mattprecious.telescope;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores screenshots as a grid of tiles named by the hash of their pixels, so that the parts of a
+ * screen that did not change between captures are only written once.
+ *
+ * <p>Saving a screenshot writes a small manifest next to where its PNG will go, listing the hash of
+ * each tile. Tiles that are already stored, like those of the previous capture, are referenced
+ * without being written again. The PNG is then built from the tiles by
+ * {@link #materialize(File)}, which deletes the manifest.
+ *
+ * <p>Tiles are kept in a hidden folder inside the screenshot folder. {@link Tiles} deletes them
+ * once no manifest references them. Saving, building and deleting all lock {@code TileStore.class},
+ * since every store of a folder shares its tiles.
+ */
+final class TileStore {
+  static final String MANIFEST_SUFFIX = ".tiles";
+  static final String TILE_FOLDER = ".tiles";
+
+  private static final String TAG = "Telescope";
+
+  private static final int MAGIC = 0x544c5331; // "TLS1"
+  private static final int TILE_SIZE = 64;
+  private static final int HASH_LENGTH = 20;
+
+  private final File folder;
+  private final File tileFolder;
+  private final int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+  private final ByteBuffer bytes = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4);
+  private final MessageDigest digest = newDigest();
+
+  TileStore(File folder) {
+    this.folder = folder;
+    this.tileFolder = new File(folder, TILE_FOLDER);
+  }
+
+  /**
+   * Save {@code screenshot} as a manifest for the PNG at {@code file}, writing only tiles that are
+   * not already stored.
+   */
+  void save(Bitmap screenshot, File file) throws IOException {
+    synchronized (TileStore.class) {
+      saveLocked(screenshot, file);
+    }
+  }
+
+  private void saveLocked(Bitmap screenshot, File file) throws IOException {
+    int width = screenshot.getWidth();
+    int height = screenshot.getHeight();
+    int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+    int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+    tileFolder.mkdirs();
+    byte[][] hashes = new byte[columns * rows][];
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        int left = column * TILE_SIZE;
+        int top = row * TILE_SIZE;
+        int tileWidth = Math.min(TILE_SIZE, width - left);
+        int tileHeight = Math.min(TILE_SIZE, height - top);
+        screenshot.getPixels(pixels, 0, tileWidth, left, top, tileWidth, tileHeight);
+
+        bytes.clear();
+        bytes.asIntBuffer().put(pixels, 0, tileWidth * tileHeight);
+        int length = tileWidth * tileHeight * 4;
+        digest.update(bytes.array(), 0, length);
+        byte[] hash = digest.digest();
+        hashes[row * columns + column] = hash;
+
+        // Always check the disk, since the tiles may have been cleaned up since the last capture.
+        File tile = tileFile(tileFolder, hash);
+        if (!tile.exists()) {
+          writeTile(tile, bytes.array(), length);
+        }
+      }
+    }
+
+    File manifest = manifestFile(file);
+    File temp = new File(folder, manifest.getName() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeBoolean(screenshot.hasAlpha());
+      for (byte[] hash : hashes) {
+        out.write(hash);
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(manifest)) {
+      temp.delete();
+      throw new IOException("Unable to write " + manifest);
+    }
+  }
+
+  /**
+   * Build the PNG at {@code file} from its manifest if it has not been built yet. Does nothing if
+   * there is no manifest for {@code file}.
+   */
+  static void materialize(File file) throws IOException {
+    File manifest = manifestFile(file);
+    // Only one thread builds a given screenshot; the rest wait for it.
+    synchronized (TileStore.class) {
+      if (file.exists() || !manifest.exists()) {
+        return;
+      }
+
+      File tileFolder = new File(file.getParentFile(), TILE_FOLDER);
+      File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+      boolean success = false;
+      try {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("Not a tile manifest: " + manifest);
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        boolean alpha = in.readBoolean();
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+
+        PngWriter writer = new PngWriter(out, width, height, alpha, Deflater.DEFAULT_COMPRESSION);
+        int[] band = new int[width * TILE_SIZE];
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int top = 0; top < height; top += TILE_SIZE) {
+          int tileHeight = Math.min(TILE_SIZE, height - top);
+          for (int column = 0; column < columns; column++) {
+            in.readFully(hash);
+            int left = column * TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, width - left);
+            readTile(tileFile(tileFolder, hash), tile, tileWidth * tileHeight);
+            for (int y = 0; y < tileHeight; y++) {
+              System.arraycopy(tile, y * tileWidth, band, y * width + left, tileWidth);
+            }
+          }
+          writer.writeRows(band, 0, width, tileHeight);
+        }
+        writer.finish();
+        success = true;
+      } finally {
+        in.close();
+        out.close();
+        if (!success) {
+          temp.delete();
+        }
+      }
+
+      if (!temp.renameTo(file)) {
+        temp.delete();
+        throw new IOException("Unable to write " + file);
+      }
+      manifest.delete();
+    }
+  }
+
+  static File manifestFile(File file) {
+    return new File(file.getParentFile(), file.getName() + MANIFEST_SUFFIX);
+  }
+
+  private static void writeTile(File tile, byte[] data, int length) throws IOException {
+    File temp = new File(tile.getParentFile(), tile.getName() + ".tmp");
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp), deflater);
+      try {
+        out.write(data, 0, length);
+      } finally {
+        out.close();
+      }
+    } finally {
+      deflater.end();
+    }
+
+    if (!temp.renameTo(tile)) {
+      temp.delete();
+      throw new IOException("Unable to write " + tile);
+    }
+  }
+
+  private static void readTile(File tile, int[] pixels, int count) throws IOException {
+    byte[] data = new byte[count * 4];
+    InputStream in = new InflaterInputStream(new FileInputStream(tile));
+    try {
+      new DataInputStream(in).readFully(data);
+    } finally {
+      in.close();
+    }
+    ByteBuffer.wrap(data).asIntBuffer().get(pixels, 0, count);
+  }
+
+  private static File tileFile(File tileFolder, byte[] hash) {
+    return new File(tileFolder, tileName(hash));
+  }
+
+  private static String tileName(byte[] hash) {
+    char[] name = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      name[i * 2] = Character.forDigit((hash[i] >>> 4) & 0xf, 16);
+      name[i * 2 + 1] = Character.forDigit(hash[i] & 0xf, 16);
+    }
+    return new String(name);
+  }
+
+  /**
+   * The stored tiles of a folder and how many manifests reference each, for deleting tiles along
+   * with the last manifest that uses them. Hold the {@code TileStore.class} lock while using one.
+   */
+  static final class Tiles {
+    private static final FileFilter MANIFESTS = new FileFilter() {
+      @Override public boolean accept(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.startsWith(".") && name.endsWith(MANIFEST_SUFFIX);
+      }
+    };
+
+    private final File tileFolder;
+    private final Map<String, Integer> references = new HashMap<>();
+    /** Whether every manifest could be read. If not, there is no telling which tiles are unused. */
+    private boolean complete = true;
+    private long bytes;
+
+    /**
+     * Count the references of every manifest in {@code folder}, deleting any tile that has none,
+     * like those of screenshots that have since been built.
+     */
+    Tiles(File folder) {
+      tileFolder = new File(folder, TILE_FOLDER);
+      File[] tiles = tileFolder.listFiles();
+      if (tiles == null) {
+        return;
+      }
+
+      File[] manifests = folder.listFiles(MANIFESTS);
+      if (manifests == null) {
+        complete = false;
+      } else {
+        for (File manifest : manifests) {
+          try {
+            for (byte[] hash : readHashes(manifest)) {
+              String name = tileName(hash);
+              Integer count = references.get(name);
+              references.put(name, count == null ? 1 : count + 1);
+            }
+          } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + manifest + ". Keeping all tiles.", e);
+            complete = false;
+          }
+        }
+      }
+
+      for (File tile : tiles) {
+        if (complete && !references.containsKey(tile.getName()) && tile.delete()) {
+          continue;
+        }
+        bytes += tile.length();
+      }
+    }
+
+    /** The size of the stored tiles. */
+    long bytes() {
+      return bytes;
+    }
+
+    /** Delete {@code manifest} and the tiles that only it referenced. */
+    boolean delete(File manifest) {
+      byte[][] hashes;
+      try {
+        hashes = readHashes(manifest);
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to read " + manifest + ". Keeping its tiles.", e);
+        hashes = new byte[0][];
+      }
+
+      if (!manifest.delete()) {
+        return false;
+      }
+
+      for (byte[] hash : hashes) {
+        String name = tileName(hash);
+        Integer count = references.get(name);
+        if (count == null) {
+          continue;
+        }
+
+        if (count > 1) {
+          references.put(name, count - 1);
+        } else if (complete) {
+          references.remove(name);
+          File tile = new File(tileFolder, name);
+          long length = tile.length();
+          if (tile.delete()) {
+            bytes -= length;
+          }
+        }
+      }
+      return true;
+    }
+
+    private static byte[][] readHashes(File manifest) throws IOException {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+      try {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("Not a tile manifest: " + manifest);
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        in.readBoolean(); // Alpha.
+
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        byte[][] hashes = new byte[columns * rows][HASH_LENGTH];
+        for (byte[] hash : hashes) {
+          in.readFully(hash);
+        }
+        return hashes;
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.mattprecious.telescope;
+
+import android.annotation.TargetApi;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+import java.io.File;
+import java.io.IOException;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+/**
+ * Records a {@link ProjectionSession} to an MP4 file. The session's display renders straight into
+ * the input surface of a hardware H.264 encoder, so frames are never copied into app memory. The
+ * recording is written under a temporary name and renamed once it has stopped.
+ *
+ * <p>All work is done on the provided background {@link Handler}.
+ */
+@TargetApi(LOLLIPOP)
+final class VideoRecorder {
+  private static final String TAG = "Telescope";
+  /** Most hardware encoders are limited to 1080p. Stay comfortably inside that. */
+  private static final int MAX_DIMENSION = 1280;
+  private static final int FRAME_RATE = 30;
+  private static final int BITS_PER_PIXEL_PER_SECOND = 2;
+
+  /** Callback for {@link #stop}. */
+  interface Callback {
+    /**
+     * Called on the background handler once recording has stopped.
+     *
+     * @param video The recording, or null if nothing was recorded.
+     */
+    void onRecorded(File video);
+  }
+
+  private final ProjectionSession session;
+  private final Handler handler;
+  private final File file;
+  private final File temp;
+
+  // Only accessed on the handler's thread.
+  private MediaRecorder recorder;
+  private Surface surface;
+  private int width;
+  private int height;
+
+  VideoRecorder(ProjectionSession session, Handler handler, File file) {
+    this.session = session;
+    this.handler = handler;
+    this.file = file;
+    this.temp = ScreenshotFiles.tempFile(file);
+  }
+
+  /**
+   * Start recording a display of the given size for at most {@code maxDurationMs}, after which
+   * {@code onMaxDuration} is run on the background handler.
+   */
+  void start(final int displayWidth, final int displayHeight, final int densityDpi,
+      final int maxDurationMs, final Runnable onMaxDuration) {
+    handler.post(new Runnable() {
+      @Override public void run() {
+        float scale = Math.min(1f, (float) MAX_DIMENSION / Math.max(displayWidth, displayHeight));
+        // Encoders require even dimensions.
+        width = Math.max(2, Math.round(displayWidth * scale) & ~1);
+        height = Math.max(2, Math.round(displayHeight * scale) & ~1);
+
+        file.getParentFile().mkdirs();
+
+        recorder = new MediaRecorder();
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        recorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        recorder.setVideoSize(width, height);
+        recorder.setVideoFrameRate(FRAME_RATE);
+        recorder.setVideoEncodingBitRate(width * height * BITS_PER_PIXEL_PER_SECOND);
+        recorder.setMaxDuration(maxDurationMs);
+        recorder.setOutputFile(temp.getAbsolutePath());
+        recorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+          @Override public void onInfo(MediaRecorder mr, int what, int extra) {
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
+              onMaxDuration.run();
+            }
+          }
+        });
+
+        try {
+          recorder.prepare();
+          surface = recorder.getSurface();
+          session.attach(surface, width, height, Math.max(1, Math.round(densityDpi * scale)));
+          recorder.start();
+        } catch (IOException | RuntimeException e) {
+          Log.e(TAG, "Failed to start screen recording.", e);
+          release();
+        }
+      }
+    });
+  }
+
+  /** Stop recording and finish writing the file. */
+  void stop(final Callback callback) {
+    handler.post(new Runnable() {
+      @Override public void run() {
+        File video = null;
+        if (recorder != null) {
+          try {
+            recorder.stop();
+            video = file;
+          } catch (RuntimeException e) {
+            // Thrown when no frames were recorded.
+            Log.e(TAG, "Failed to finish screen recording.", e);
+          }
+        }
+
+        release();
+
+        if (video == null) {
+          temp.delete();
+        } else {
+          try {
+            ScreenshotFiles.commit(temp, file);
+            ScreenshotCatalog.forFolder(file.getParentFile())
+                .add(file, file.length(), width, height, ScreenshotMode.VIDEO, null);
+          } catch (IOException e) {
+            Log.e(TAG, "Failed to save screen recording.", e);
+            video = null;
+          }
+        }
+        callback.onRecorded(video);
+      }
+    });
+  }
+
+  private void release() {
+    if (surface != null) {
+      session.detach(surface);
+      surface = null;
+    }
+
+    if (recorder != null) {
+      recorder.release();
+      recorder = null;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.mattprecious.telescope;
+
+import android.util.Log;
+import android.view.View;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
+
+/**
+ * Finds the root views of every window in this process (activities, dialogs, popups, toasts).
+ * There is no public API for this so it reads the window list kept by
+ * {@code android.view.WindowManagerGlobal}. That field is on the restricted non-SDK interface list,
+ * so newer releases may refuse the access. Once that happens it is not tried again.
+ */
+final class WindowRoots {
+  private static final String TAG = "Telescope";
+
+  private static boolean unavailable; // Only accessed on the main thread.
+
+  /**
+   * Return the root view of each window in the order the windows were added, which is their
+   * z-order from bottom to top in almost all cases. Returns null if the windows could not be found.
+   * Must be called on the main thread.
+   */
+  @SuppressWarnings("unchecked") // Checked with instanceof.
+  static List<View> find() {
+    if (SDK_INT < JELLY_BEAN_MR1 || unavailable) {
+      return null;
+    }
+
+    try {
+      Class<?> globalClass = Class.forName("android.view.WindowManagerGlobal");
+      Object global = globalClass.getMethod("getInstance").invoke(null);
+      Field viewsField = globalClass.getDeclaredField("mViews");
+      viewsField.setAccessible(true);
+
+      // A View[] before KitKat, an ArrayList<View> since.
+      Object views = viewsField.get(global);
+      if (views instanceof List) {
+        return new ArrayList<>((List<View>) views);
+      }
+      if (views instanceof View[]) {
+        return new ArrayList<>(Arrays.asList((View[]) views));
+      }
+      Log.w(TAG, "Unexpected window list " + views + ". Only drawing the target's window.");
+    } catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException
+        | IllegalAccessException | InvocationTargetException | RuntimeException e) {
+      // RuntimeException covers a SecurityException from the hidden API restrictions.
+      Log.w(TAG, "Unable to find window roots. Only drawing the target's window.", e);
+    }
+
+    unavailable = true;
+    return null;
+  }
+
+  private WindowRoots() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,66 @@
+package com.mattprecious.telescope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class BufferOutputStreamTest {
+  private final BufferPool pool = new BufferPool(1024);
+
+  @Test public void growsPastInitialCapacity() throws IOException {
+    BufferOutputStream out = new BufferOutputStream(pool, 4);
+    byte[] expected = new byte[100];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = (byte) i;
+    }
+    out.write(expected[0]);
+    out.write(expected, 1, expected.length - 1);
+
+    assertArrayEquals(expected, bytes(out.toBuffer()));
+  }
+
+  @Test public void writingPastMaxCapacityThrows() throws IOException {
+    BufferOutputStream out = new BufferOutputStream(pool, 4, 16);
+    out.write(new byte[10], 0, 10);
+    try {
+      out.write(new byte[7], 0, 7);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    out.discard();
+  }
+
+  @Test public void writingUpToMaxCapacityFits() throws IOException {
+    BufferOutputStream out = new BufferOutputStream(pool, 4, 16);
+    out.write(new byte[16], 0, 16);
+    try {
+      out.write(0);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertEquals(16, out.toBuffer().remaining());
+  }
+
+  @Test public void lengthOverflowThrows() throws IOException {
+    BufferOutputStream out = new BufferOutputStream(pool, 4);
+    out.write(new byte[4], 0, 4);
+    try {
+      // More than an int can count, without allocating it.
+      out.write(new byte[0], 0, Integer.MAX_VALUE);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,246 @@
+package com.mattprecious.telescope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Test images, and a strict PNG decoder to check the encoders' output against. */
+final class Images {
+  /**
+   * A UI-like image: flat areas, gradients and noise, so that every filter and QOI op gets used.
+   * Pixels are packed, non-premultiplied ARGB.
+   */
+  static int[] create(int width, int height, boolean alpha, long seed) {
+    Random random = new Random(seed);
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int pixel;
+        switch ((y / 7 + x / 13) % 4) {
+          case 0:
+            pixel = 0xff2196f3;
+            break;
+          case 1:
+            pixel = 0xff000000 | (x * 3 & 0xff) << 16 | (y * 5 & 0xff) << 8 | (x + y & 0xff);
+            break;
+          case 2:
+            pixel = 0xff000000 | random.nextInt(0x1000000);
+            break;
+          default:
+            pixel = 0xfffafafa + random.nextInt(3);
+            break;
+        }
+        if (alpha && (x + y) % 5 == 0) {
+          pixel = (pixel & 0xffffff) | random.nextInt(256) << 24;
+        }
+        pixels[y * width + x] = pixel;
+      }
+    }
+    return pixels;
+  }
+
+  /** An image that only uses the given colors. */
+  static int[] create(int width, int height, int[] colors, long seed) {
+    Random random = new Random(seed);
+    int[] pixels = new int[width * height];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = colors[random.nextInt(colors.length)];
+    }
+    return pixels;
+  }
+
+  /** Serves rows straight out of an array. */
+  static ParallelPngWriter.RowSource source(final int[] image, final int width) {
+    return new ParallelPngWriter.RowSource() {
+      @Override public void getRows(int[] pixels, int y, int rows) {
+        System.arraycopy(image, y * width, pixels, 0, rows * width);
+      }
+    };
+  }
+
+  /** Opaque versions of {@code pixels}, as an encoder without alpha sees them. */
+  static int[] opaque(int[] pixels) {
+    int[] opaque = new int[pixels.length];
+    for (int i = 0; i < pixels.length; i++) {
+      opaque[i] = pixels[i] | 0xff000000;
+    }
+    return opaque;
+  }
+
+  /**
+   * Decode an 8-bit truecolor or indexed PNG to packed ARGB and check that it is {@code width} by
+   * {@code height}. Chunk CRCs and the zlib checksum are verified.
+   */
+  static int[] decodePng(InputStream stream, int width, int height)
+      throws IOException, DataFormatException {
+    DataInputStream in = new DataInputStream(stream);
+    byte[] signature = new byte[PngWriter.SIGNATURE.length];
+    in.readFully(signature);
+    assertArrayEquals(PngWriter.SIGNATURE, signature);
+
+    byte[] header = null;
+    int[] palette = null;
+    ByteArrayOutputStream idat = new ByteArrayOutputStream();
+    boolean ended = false;
+    while (!ended) {
+      int length = in.readInt();
+      byte[] typeAndData = new byte[4 + length];
+      in.readFully(typeAndData);
+      CRC32 crc = new CRC32();
+      crc.update(typeAndData);
+      assertEquals("CRC", (int) crc.getValue(), in.readInt());
+
+      String type = new String(typeAndData, 0, 4, "US-ASCII");
+      byte[] data = Arrays.copyOfRange(typeAndData, 4, typeAndData.length);
+      if ("IHDR".equals(type)) {
+        header = data;
+      } else if ("PLTE".equals(type)) {
+        palette = new int[length / 3];
+        for (int i = 0; i < palette.length; i++) {
+          palette[i] = 0xff000000
+              | (data[i * 3] & 0xff) << 16
+              | (data[i * 3 + 1] & 0xff) << 8
+              | data[i * 3 + 2] & 0xff;
+        }
+      } else if ("tRNS".equals(type)) {
+        for (int i = 0; i < length; i++) {
+          palette[i] = (palette[i] & 0xffffff) | (data[i] & 0xff) << 24;
+        }
+      } else if ("IDAT".equals(type)) {
+        idat.write(data);
+      } else if ("IEND".equals(type)) {
+        ended = true;
+      } else {
+        fail("Unexpected chunk " + type);
+      }
+    }
+    try {
+      in.readByte();
+      fail("Data after IEND");
+    } catch (EOFException expected) {
+    }
+
+    DataInputStream ihdr = new DataInputStream(new ByteArrayInputStream(header));
+    assertEquals(width, ihdr.readInt());
+    assertEquals(height, ihdr.readInt());
+    int bitDepth = ihdr.readUnsignedByte();
+    int colorType = ihdr.readUnsignedByte();
+
+    int bitsPerPixel;
+    switch (colorType) {
+      case 2:
+        assertEquals(8, bitDepth);
+        bitsPerPixel = 24;
+        break;
+      case 6:
+        assertEquals(8, bitDepth);
+        bitsPerPixel = 32;
+        break;
+      case 3:
+        bitsPerPixel = bitDepth;
+        break;
+      default:
+        throw new AssertionError("Unexpected color type " + colorType);
+    }
+    int bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+    int rowBytes = (width * bitsPerPixel + 7) / 8;
+
+    int rawLength = height * (1 + rowBytes);
+    // One spare byte to catch too much data. Finishing the stream checks its Adler-32.
+    byte[] raw = new byte[rawLength + 1];
+    Inflater inflater = new Inflater();
+    inflater.setInput(idat.toByteArray());
+    int inflated = 0;
+    while (!inflater.finished()) {
+      int count = inflater.inflate(raw, inflated, raw.length - inflated);
+      if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        fail("Truncated image data");
+      }
+      inflated += count;
+    }
+    assertEquals(rawLength, inflated);
+    assertEquals("Data after the zlib stream", 0, inflater.getRemaining());
+    inflater.end();
+
+    int[] pixels = new int[width * height];
+    byte[] previous = new byte[rowBytes];
+    byte[] row = new byte[rowBytes];
+    for (int y = 0; y < height; y++) {
+      int offset = y * (1 + rowBytes);
+      unfilter(raw[offset], raw, offset + 1, row, previous, bytesPerPixel);
+
+      for (int x = 0; x < width; x++) {
+        int pixel;
+        if (colorType == 3) {
+          int bit = x * bitDepth;
+          int index = (row[bit / 8] & 0xff) >>> (8 - bitDepth - bit % 8) & (1 << bitDepth) - 1;
+          assertTrue("Palette index out of range", index < palette.length);
+          pixel = palette[index];
+        } else {
+          int i = x * bytesPerPixel;
+          int alpha = colorType == 6 ? row[i + 3] & 0xff : 0xff;
+          pixel = alpha << 24
+              | (row[i] & 0xff) << 16
+              | (row[i + 1] & 0xff) << 8
+              | row[i + 2] & 0xff;
+        }
+        pixels[y * width + x] = pixel;
+      }
+
+      byte[] swap = previous;
+      previous = row;
+      row = swap;
+    }
+    return pixels;
+  }
+
+  private static void unfilter(int type, byte[] raw, int offset, byte[] row, byte[] previous,
+      int bytesPerPixel) {
+    for (int i = 0; i < row.length; i++) {
+      int x = raw[offset + i] & 0xff;
+      int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+      int b = previous[i] & 0xff;
+      int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+      switch (type) {
+        case PngWriter.FILTER_NONE:
+          break;
+        case PngWriter.FILTER_SUB:
+          x += a;
+          break;
+        case PngWriter.FILTER_UP:
+          x += b;
+          break;
+        case PngWriter.FILTER_AVERAGE:
+          x += (a + b) >>> 1;
+          break;
+        case PngWriter.FILTER_PAETH:
+          int p = a + b - c;
+          int pa = Math.abs(p - a);
+          int pb = Math.abs(p - b);
+          int pc = Math.abs(p - c);
+          x += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+          break;
+        default:
+          throw new AssertionError("Unexpected filter " + type);
+      }
+      row[i] = (byte) x;
+    }
+  }
+
+  private Images() {
+    throw new AssertionError("No instances.");
+  }
+}
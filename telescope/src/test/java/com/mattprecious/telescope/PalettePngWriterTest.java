@@ -0,0 +1,84 @@
+package com.mattprecious.telescope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class PalettePngWriterTest {
+  @Test public void roundTripsEveryBitDepth() throws Exception {
+    // 1, 2, 4 and 8 bits per pixel, with widths that leave a partial byte at the end of each row.
+    for (int colors : new int[] { 1, 2, 3, 4, 16, 17, 256 }) {
+      for (int width : new int[] { 1, 7, 9, 50 }) {
+        assertRoundTrip(width, 45, colors(colors, false));
+      }
+    }
+  }
+
+  @Test public void roundTripsTranslucentColors() throws Exception {
+    assertRoundTrip(31, 70, colors(12, true));
+  }
+
+  @Test public void findsPalette() throws Exception {
+    int[] colors = colors(40, false);
+    int[] pixels = Images.create(60, 80, colors, 5);
+
+    int[] palette = PalettePngWriter.findPalette(60, 80, Images.source(pixels, 60));
+
+    int[] sorted = palette.clone();
+    Arrays.sort(sorted);
+    int[] expected = colors.clone();
+    Arrays.sort(expected);
+    assertArrayEquals(expected, sorted);
+  }
+
+  @Test public void findsNoPaletteForTooManyColors() throws Exception {
+    int[] pixels = Images.create(60, 80, colors(PalettePngWriter.MAX_COLORS + 1, false), 5);
+    assertNull(PalettePngWriter.findPalette(60, 80, Images.source(pixels, 60)));
+  }
+
+  @Test public void findsPaletteOfPhotoLikeImage() throws Exception {
+    int[] pixels = Images.create(60, 80, false, 5);
+    assertNull(PalettePngWriter.findPalette(60, 80, Images.source(pixels, 60)));
+  }
+
+  private static void assertRoundTrip(int width, int height, int[] colors) throws Exception {
+    int[] pixels = Images.create(width, height, colors, width * 31 + height);
+    ParallelPngWriter.RowSource source = Images.source(pixels, width);
+    int[] palette = PalettePngWriter.findPalette(width, height, source);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PalettePngWriter.write(out, width, height, palette, source, Deflater.DEFAULT_COMPRESSION);
+
+    String message = colors.length + " colors, " + width + "x" + height;
+    assertEquals(message, palette.length, distinct(pixels));
+    assertArrayEquals(message, pixels,
+        Images.decodePng(new ByteArrayInputStream(out.toByteArray()), width, height));
+  }
+
+  private static int[] colors(int count, boolean translucent) {
+    int[] colors = new int[count];
+    for (int i = 0; i < count; i++) {
+      int alpha = translucent ? i * 255 / count : 0xff;
+      colors[i] = alpha << 24 | (i * 0x9e3779b9 & 0xffffff);
+    }
+    return colors;
+  }
+
+  private static int distinct(int[] pixels) {
+    int[] sorted = pixels.clone();
+    Arrays.sort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
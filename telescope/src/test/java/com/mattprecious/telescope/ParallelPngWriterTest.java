@@ -0,0 +1,141 @@
+package com.mattprecious.telescope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public final class ParallelPngWriterTest {
+  private final ExecutorService executor = Executors.newFixedThreadPool(3);
+  private final ParallelPngWriter writer =
+      new ParallelPngWriter(executor, Deflater.DEFAULT_COMPRESSION);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void roundTripsOneStripe() throws Exception {
+    assertRoundTrip(50, 1, false);
+    assertRoundTrip(50, 127, true);
+    assertRoundTrip(50, 128, false);
+  }
+
+  @Test public void roundTripsPartialLastStripe() throws Exception {
+    assertRoundTrip(61, 129, false);
+    assertRoundTrip(61, 129, true);
+    assertRoundTrip(83, 300, false);
+    assertRoundTrip(83, 300, true);
+  }
+
+  @Test public void roundTripsWholeStripes() throws Exception {
+    assertRoundTrip(64, 512, true);
+  }
+
+  @Test public void roundTripsOnOneThread() throws Exception {
+    ExecutorService single = Executors.newSingleThreadExecutor();
+    try {
+      int width = 70;
+      int height = 333;
+      int[] pixels = Images.create(width, height, true, 7);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new ParallelPngWriter(single, Deflater.BEST_SPEED)
+          .write(out, width, height, true, Images.source(pixels, width));
+      assertArrayEquals(pixels,
+          Images.decodePng(new ByteArrayInputStream(out.toByteArray()), width, height));
+    } finally {
+      single.shutdownNow();
+    }
+  }
+
+  @Test public void failedStripeStopsTheOthers() throws Exception {
+    final int width = 10;
+    final int height = 128 * 20;
+    final AtomicBoolean returned = new AtomicBoolean();
+    final AtomicBoolean readAfterReturn = new AtomicBoolean();
+    ParallelPngWriter.RowSource source = new ParallelPngWriter.RowSource() {
+      @Override public void getRows(int[] pixels, int y, int rows) throws IOException {
+        if (returned.get()) {
+          readAfterReturn.set(true);
+        }
+        if (y <= 128 && 128 < y + rows) {
+          throw new IOException("Broken stripe");
+        }
+      }
+    };
+
+    try {
+      writer.write(new ByteArrayOutputStream(), width, height, false, source);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Broken stripe", e.getMessage());
+    }
+    returned.set(true);
+
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    assertFalse(readAfterReturn.get());
+  }
+
+  @Test public void combinesAdler32() {
+    Random random = new Random(3);
+    byte[] data = new byte[200000];
+    random.nextBytes(data);
+
+    int[] splits = { 0, 1, 5552, 65520, 65521, 65522, 100000, data.length - 1, data.length };
+    for (int split : splits) {
+      Adler32 first = new Adler32();
+      first.update(data, 0, split);
+      Adler32 second = new Adler32();
+      second.update(data, split, data.length - split);
+      Adler32 whole = new Adler32();
+      whole.update(data);
+
+      assertEquals("split at " + split, whole.getValue(),
+          ParallelPngWriter.combineAdler32(first.getValue(), second.getValue(),
+              data.length - split));
+    }
+  }
+
+  @Test public void combinesAdler32OfSaturatedSums() {
+    // All 0xff bytes push both sums close to the modulus.
+    byte[] data = new byte[70000];
+    Arrays.fill(data, (byte) 0xff);
+    for (int split = 0; split <= data.length; split += 6997) {
+      Adler32 first = new Adler32();
+      first.update(data, 0, split);
+      Adler32 second = new Adler32();
+      second.update(data, split, data.length - split);
+      Adler32 whole = new Adler32();
+      whole.update(data);
+
+      assertEquals("split at " + split, whole.getValue(),
+          ParallelPngWriter.combineAdler32(first.getValue(), second.getValue(),
+              data.length - split));
+    }
+  }
+
+  private void assertRoundTrip(int width, int height, boolean alpha) throws Exception {
+    int[] pixels = Images.create(width, height, alpha, width * 31 + height);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(out, width, height, alpha, Images.source(pixels, width));
+
+    int[] expected = alpha ? pixels : Images.opaque(pixels);
+    assertArrayEquals(width + "x" + height, expected,
+        Images.decodePng(new ByteArrayInputStream(out.toByteArray()), width, height));
+  }
+}
@@ -0,0 +1,79 @@
+package com.mattprecious.telescope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public final class PngWriterTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void roundTripsOpaque() throws Exception {
+    assertRoundTrip(97, 61, false, 10);
+  }
+
+  @Test public void roundTripsAlpha() throws Exception {
+    assertRoundTrip(97, 61, true, 10);
+  }
+
+  @Test public void roundTripsOneRowAtATime() throws Exception {
+    assertRoundTrip(33, 20, true, 1);
+  }
+
+  @Test public void roundTripsSinglePixel() throws Exception {
+    assertRoundTrip(1, 1, false, 1);
+  }
+
+  @Test public void roundTripsAcrossChunks() throws Exception {
+    // Noisy enough to need several 64K IDAT chunks.
+    assertRoundTrip(400, 300, true, 64);
+  }
+
+  @Test public void patchesHeight() throws Exception {
+    int width = 40;
+    int height = 25;
+    int[] pixels = Images.create(width, height, false, 1);
+
+    File file = temporaryFolder.newFile("patched.png");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      PngWriter writer = new PngWriter(out, width, 1, false, Deflater.DEFAULT_COMPRESSION);
+      writer.writeRows(pixels, 0, width, height);
+      writer.finish();
+    } finally {
+      out.close();
+    }
+    PngWriter.patchHeight(file, height);
+
+    InputStream in = new FileInputStream(file);
+    try {
+      assertArrayEquals(Images.opaque(pixels), Images.decodePng(in, width, height));
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void assertRoundTrip(int width, int height, boolean alpha, int batchRows)
+      throws Exception {
+    int[] pixels = Images.create(width, height, alpha, width * 31 + height);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PngWriter writer = new PngWriter(out, width, height, alpha, Deflater.DEFAULT_COMPRESSION);
+    for (int y = 0; y < height; y += batchRows) {
+      writer.writeRows(pixels, y * width, width, Math.min(batchRows, height - y));
+    }
+    writer.finish();
+
+    int[] expected = alpha ? pixels : Images.opaque(pixels);
+    assertArrayEquals(expected,
+        Images.decodePng(new ByteArrayInputStream(out.toByteArray()), width, height));
+  }
+}
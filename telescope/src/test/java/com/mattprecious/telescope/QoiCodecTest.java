@@ -0,0 +1,139 @@
+package com.mattprecious.telescope;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class QoiCodecTest {
+  /** After the signature, the chunk's length and type, and the width, height and bit depth. */
+  private static final int IHDR_COLOR_TYPE_OFFSET = 8 + 8 + 9;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void roundTripsOpaque() throws Exception {
+    assertRoundTrip(97, 61, false);
+  }
+
+  @Test public void roundTripsAlpha() throws Exception {
+    assertRoundTrip(97, 61, true);
+  }
+
+  @Test public void roundTripsLongRuns() throws Exception {
+    // Runs longer than a single op can hold, across batches of rows.
+    int width = 300;
+    int height = 70;
+    int[] pixels = new int[width * height];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = i < pixels.length / 2 ? 0xff000000 : 0xff00ff00;
+    }
+    assertArrayEquals(pixels, roundTrip(pixels, width, height, false));
+  }
+
+  @Test public void readsRowsAgainFromTheTop() throws Exception {
+    int width = 20;
+    int height = 90;
+    int[] pixels = Images.create(width, height, true, 3);
+    File file = encode(pixels, width, height, true);
+
+    QoiCodec.Reader reader = new QoiCodec.Reader(file);
+    try {
+      int[] rows = new int[width * 10];
+      reader.getRows(rows, 50, 10);
+      reader.getRows(rows, 0, 10);
+      int[] expected = new int[width * 10];
+      System.arraycopy(pixels, 0, expected, 0, expected.length);
+      assertArrayEquals(expected, rows);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test public void convertsToPng() throws Exception {
+    int width = 75;
+    int height = 140;
+    int[] pixels = Images.create(width, height, true, 9);
+    File qoi = encode(pixels, width, height, true);
+    File png = QoiCodec.pngFile(qoi);
+
+    QoiCodec.toPng(qoi, png, Deflater.DEFAULT_COMPRESSION, true);
+
+    InputStream in = new FileInputStream(png);
+    try {
+      assertArrayEquals(pixels, Images.decodePng(in, width, height));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test public void convertsToPalettePng() throws Exception {
+    int width = 75;
+    int height = 140;
+    int[] pixels = Images.create(width, height, new int[] { 0xffffffff, 0xff000000, 0x80ff0000 },
+        9);
+    File qoi = encode(pixels, width, height, true);
+    File png = QoiCodec.pngFile(qoi);
+
+    QoiCodec.toPng(qoi, png, Deflater.DEFAULT_COMPRESSION, true);
+
+    byte[] bytes = Files.readAllBytes(png.toPath());
+    assertEquals("Color type", 3, bytes[IHDR_COLOR_TYPE_OFFSET]);
+    InputStream in = new ByteArrayInputStream(bytes);
+    try {
+      assertArrayEquals(pixels, Images.decodePng(in, width, height));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test public void namesFiles() {
+    File qoi = new File("telescope-2017-01-01-000000-000.qoi");
+    assertTrue(QoiCodec.isQoi(qoi));
+    assertFalse(QoiCodec.isQoi(new File("telescope-2017-01-01-000000-000.png")));
+    assertEquals("telescope-2017-01-01-000000-000.png", QoiCodec.pngFile(qoi).getName());
+  }
+
+  private void assertRoundTrip(int width, int height, boolean alpha) throws Exception {
+    int[] pixels = Images.create(width, height, alpha, width * 31 + height);
+    int[] expected = alpha ? pixels : Images.opaque(pixels);
+    assertArrayEquals(expected, roundTrip(pixels, width, height, alpha));
+  }
+
+  private int[] roundTrip(int[] pixels, int width, int height, boolean alpha) throws Exception {
+    QoiCodec.Reader reader = new QoiCodec.Reader(encode(pixels, width, height, alpha));
+    try {
+      assertEquals(width, reader.width);
+      assertEquals(height, reader.height);
+      assertEquals(alpha, reader.alpha);
+
+      int[] decoded = new int[width * height];
+      reader.getRows(decoded, 0, height);
+      return decoded;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private File encode(int[] pixels, int width, int height, boolean alpha) throws Exception {
+    File file = temporaryFolder.newFile("image." + QoiCodec.EXTENSION);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      QoiCodec.encode(out, width, height, alpha, Images.source(pixels, width));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}